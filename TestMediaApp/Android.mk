@@ -42,6 +42,10 @@ LOCAL_STATIC_ANDROID_LIBRARIES := \
 
 LOCAL_USE_AAPT2 := true
 
+# Compiled media item catalogs and the lazily read json files are memory mapped, which requires
+# uncompressed assets.
+LOCAL_AAPT_FLAGS := -0 .tmac -0 .json
+
 LOCAL_PROGUARD_ENABLED := disabled
 
 LOCAL_DEX_PREOPT := false
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.media.testmediaapp.TmaScheduler.Priority;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaAdmissionLimit;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaOverflowPolicy;
+import com.android.car.media.testmediaapp.prefs.TmaPrefs;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Limits the browse requests of {@link TmaBrowser} in progress, for each client package and in
+ * total (see {@link TmaPrefs#mAdmissionLimit}), so that a misbehaving client can't make the
+ * service queue unbounded work. The requests over the limits are either queued until requests
+ * finish, up to a number per client, or rejected (see {@link TmaPrefs#mOverflowPolicy}).
+ * Must be used on the main thread.
+ */
+class TmaAdmissionControl {
+
+    enum Admission {
+        /** The request can start, and must call {@link #finish} once done. */
+        STARTED,
+        /** The request will start later, with the {@link Priority#BROWSE} work. */
+        QUEUED,
+        /** The request must fail. */
+        REJECTED
+    }
+
+    private static class QueuedRequest {
+        final String mParentId;
+        final Runnable mStart;
+
+        QueuedRequest(String parentId, Runnable start) {
+            mParentId = parentId;
+            mStart = start;
+        }
+    }
+
+    private static class Client {
+        final ArrayDeque<QueuedRequest> mQueue = new ArrayDeque<>();
+        int mInProgressCount;
+        long mServedCount;
+        long mQueuedCount;
+        long mRejectedCount;
+        long mDroppedCount;
+    }
+
+    private final TmaPrefs mPrefs;
+    private final TmaScheduler mScheduler;
+    /** Keyed by client package name. */
+    private final Map<String, Client> mClients = new LinkedHashMap<>();
+    private int mInProgressCount;
+
+    TmaAdmissionControl(TmaPrefs prefs, TmaScheduler scheduler) {
+        mPrefs = prefs;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Returns whether the request of the client for the children of the parent can start now.
+     * The queued requests are started later with the given runnable.
+     */
+    Admission admit(String clientPackage, String parentId, Runnable start) {
+        TmaAdmissionLimit limit = mPrefs.mAdmissionLimit.getValue();
+        // The limits might have been raised since the last request finished.
+        startQueued(limit);
+
+        Client client = mClients.get(clientPackage);
+        if (client == null) {
+            client = new Client();
+            mClients.put(clientPackage, client);
+        }
+        if (client.mQueue.isEmpty() && isUnderLimits(limit, client)) {
+            client.mInProgressCount++;
+            mInProgressCount++;
+            return Admission.STARTED;
+        }
+        if (mPrefs.mOverflowPolicy.getValue() == TmaOverflowPolicy.FAIL_FAST
+                || client.mQueue.size() >= limit.mMaxQueuedPerClient) {
+            client.mRejectedCount++;
+            return Admission.REJECTED;
+        }
+        client.mQueuedCount++;
+        client.mQueue.add(new QueuedRequest(parentId, start));
+        return Admission.QUEUED;
+    }
+
+    /** Called once a started request is done, served or dropped. */
+    void finish(String clientPackage, boolean served) {
+        Client client = mClients.get(clientPackage);
+        if (client == null || client.mInProgressCount <= 0) return;
+        client.mInProgressCount--;
+        mInProgressCount--;
+        if (served) {
+            client.mServedCount++;
+        } else {
+            client.mDroppedCount++;
+        }
+        startQueued(mPrefs.mAdmissionLimit.getValue());
+    }
+
+    /**
+     * Drops the queued requests for the children of the parent, of the client or of all the
+     * clients if null.
+     */
+    void drop(String parentId, @Nullable String clientPackage) {
+        drop(clientPackage, request -> parentId.equals(request.mParentId));
+    }
+
+    /** Drops all the queued requests, of every client. */
+    void dropAll() {
+        drop(null, request -> true);
+    }
+
+    private void drop(@Nullable String clientPackage, Predicate<QueuedRequest> predicate) {
+        for (Map.Entry<String, Client> entry : mClients.entrySet()) {
+            if (clientPackage != null && !clientPackage.equals(entry.getKey())) continue;
+            Client client = entry.getValue();
+            for (Iterator<QueuedRequest> it = client.mQueue.iterator(); it.hasNext(); ) {
+                if (predicate.test(it.next())) {
+                    it.remove();
+                    client.mDroppedCount++;
+                }
+            }
+        }
+    }
+
+    private boolean isUnderLimits(TmaAdmissionLimit limit, Client client) {
+        return (limit.mMaxPerClient <= 0 || client.mInProgressCount < limit.mMaxPerClient)
+                && (limit.mMaxTotal <= 0 || mInProgressCount < limit.mMaxTotal);
+    }
+
+    /** Starts the queued requests the limits allow, the first clients first. */
+    private void startQueued(TmaAdmissionLimit limit) {
+        for (Client client : mClients.values()) {
+            while (!client.mQueue.isEmpty() && isUnderLimits(limit, client)) {
+                client.mInProgressCount++;
+                mInProgressCount++;
+                // Not run right away, the caller might be iterating its own requests.
+                mScheduler.post(Priority.BROWSE, client.mQueue.poll().mStart);
+            }
+        }
+    }
+
+    void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "limit: " + mPrefs.mAdmissionLimit.getValue() + " overflow: "
+                + mPrefs.mOverflowPolicy.getValue() + " in progress: " + mInProgressCount);
+        for (Map.Entry<String, Client> entry : mClients.entrySet()) {
+            Client client = entry.getValue();
+            writer.println(prefix + entry.getKey() + ": in progress: " + client.mInProgressCount
+                    + " waiting: " + client.mQueue.size() + " served: " + client.mServedCount
+                    + " queued: " + client.mQueuedCount + " rejected: " + client.mRejectedCount
+                    + " dropped: " + client.mDroppedCount);
+        }
+    }
+}
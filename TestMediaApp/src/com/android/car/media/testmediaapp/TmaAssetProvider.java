@@ -24,6 +24,8 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -45,6 +47,13 @@ public class TmaAssetProvider extends ContentProvider {
         return prefix + localArt;
     }
 
+    /** Returns the path of the asset served for the given uri, or null if it isn't an asset. */
+    @Nullable
+    public static String getAssetPath(String uriString) {
+        return uriString.startsWith(ASSET_URI_PREFIX)
+                ? uriString.substring(ASSET_URI_PREFIX.length()) : null;
+    }
+
     @Override
     public AssetFileDescriptor openAssetFile(Uri uri, String mode) throws FileNotFoundException {
         Log.i(TAG, "TmaAssetProvider#openAssetFile " + uri);
@@ -17,8 +17,11 @@ package com.android.car.media.testmediaapp;
 
 import android.content.Context;
 import android.media.AudioManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserCompat.MediaItem;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
@@ -27,14 +30,28 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.media.MediaBrowserServiceCompat;
+import androidx.media.MediaSessionManager.RemoteUserInfo;
 
+import com.android.car.media.testmediaapp.TmaScheduler.Priority;
+import com.android.car.media.testmediaapp.loader.TmaCatalogFootprint;
 import com.android.car.media.testmediaapp.loader.TmaLoader;
+import com.android.car.media.testmediaapp.loader.TmaReaderBenchmark;
 import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaAccountType;
 import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaNodeReplyDelay;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaReplyThread;
 import com.android.car.media.testmediaapp.prefs.TmaPrefs;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 
 /**
@@ -43,34 +60,60 @@ import java.util.List;
  * preferences (see: {@link TmaPrefs}), allow to create a variety of use cases (including error
  * states) to stress test the Car Media application. <p/>
  * The media items are cached in the {@link TmaLibrary}, and can be virtually played with
- * {@link TmaPlayer}.
+ * {@link TmaPlayer}. The browse replies are shared between the clients by {@link TmaReplyCache}.
+ * After each browse reply, {@link TmaPrefetcher} prepares the nodes the user
+ * is likely to browse next.
  */
 public class TmaBrowser extends MediaBrowserServiceCompat {
 
+    private static final String TAG = "TmaBrowser";
     private static final String MEDIA_SESSION_TAG = "TEST_MEDIA_SESSION";
     private static final String ROOT_ID = "_ROOT_ID_";
     private static final String SEARCH_SUPPORTED = "android.media.browse.SEARCH_SUPPORTED";
+    private static final int MAX_SEARCH_RESULTS = 100;
+    /** Dump argument running {@link TmaCatalogFootprint}, see {@link #runDumpCheck}. */
+    private static final String DUMP_FOOTPRINT_ARG = "footprint";
+    /** Dump argument running {@link TmaReaderBenchmark}, see {@link #runDumpCheck}. */
+    private static final String DUMP_READER_ARG = "reader";
+    /** Dump argument running {@link TmaSchedulerBenchmark}, see {@link #runDumpCheck}. */
+    private static final String DUMP_SCHEDULER_ARG = "scheduler";
+    /** Dump argument running {@link TmaSearchIndexCheck}, see {@link #runDumpCheck}. */
+    private static final String DUMP_SEARCH_CHECK_ARG = "search";
 
     private TmaPrefs mPrefs;
     private Handler mHandler;
+    /**
+     * Runs the work by priority, on the main thread and on worker threads (see
+     * {@link TmaPrefs#mReplyThread}).
+     */
+    private TmaScheduler mScheduler;
     private MediaSessionCompat mSession;
     private TmaLibrary mLibrary;
     private TmaPlayer mPlayer;
+    private TmaPrefetcher mPrefetcher;
+    private final TmaReplyCache mReplyCache = new TmaReplyCache();
+    private TmaPendingReplies mPendingReplies;
+    private TmaAdmissionControl mAdmission;
 
     private BrowserRoot mRoot;
-    private String mLastLoadedNodeId;
+    /** Keyed by client package name. */
+    private final Map<String, TmaSearchSession> mSearchSessions = new HashMap<>();
 
     @Override
     public void onCreate() {
         super.onCreate();
         mPrefs = TmaPrefs.getInstance(this);
         mHandler = new Handler();
+        mScheduler = new TmaScheduler(mHandler);
+        mPendingReplies = new TmaPendingReplies(mScheduler);
+        mAdmission = new TmaAdmissionControl(mPrefs, mScheduler);
         mSession = new MediaSessionCompat(this, MEDIA_SESSION_TAG);
         setSessionToken(mSession.getSessionToken());
 
-        mLibrary = new TmaLibrary(new TmaLoader(this));
+        mLibrary = new TmaLibrary(new TmaLoader(this), mPrefs);
         AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        mPlayer = new TmaPlayer(this, mLibrary, audioManager, mHandler, mSession);
+        mPlayer = new TmaPlayer(this, mLibrary, audioManager, mScheduler, mSession);
+        mPrefetcher = new TmaPrefetcher(this, mLibrary, mPrefs, mScheduler);
 
         mSession.setCallback(mPlayer);
         mSession.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS
@@ -85,6 +128,10 @@ public class TmaBrowser extends MediaBrowserServiceCompat {
         mPrefs.mRootReplyDelay.registerChangeListener(
                 (oldValue, newValue) -> invalidateRoot());
 
+        for (TmaPrefs.PrefEntry<?> generatorPref : mPrefs.getGeneratorPrefs()) {
+            generatorPref.registerChangeListener((oldValue, newValue) -> invalidateRoot());
+        }
+
         Bundle extras = new Bundle();
         extras.putBoolean(SEARCH_SUPPORTED, true);
         mRoot = new BrowserRoot(ROOT_ID, extras);
@@ -93,6 +140,10 @@ public class TmaBrowser extends MediaBrowserServiceCompat {
     @Override
     public void onDestroy() {
         mSession.release();
+        mPendingReplies.dropAll();
+        mScheduler.shutdown();
+        mPrefetcher.release();
+        mLibrary.release();
         mHandler = null;
         mPrefs = null;
         super.onDestroy();
@@ -115,10 +166,34 @@ public class TmaBrowser extends MediaBrowserServiceCompat {
         invalidateRoot();
     }
 
+    /**
+     * Called when the whole tree changes: the pending replies of every node would be computed
+     * against the new state, so they are all dropped and the clients load the root again.
+     */
     private void invalidateRoot() {
+        // Queued first, the dropped replies would start them.
+        mAdmission.dropAll();
+        mPendingReplies.dropAll();
         notifyChildrenChanged(ROOT_ID);
     }
 
+    @Override
+    public void notifyChildrenChanged(@NonNull String parentId) {
+        // The subscribed clients will load the children again.
+        mPendingReplies.drop(parentId, null);
+        mAdmission.drop(parentId, null);
+        mReplyCache.invalidate();
+        super.notifyChildrenChanged(parentId);
+    }
+
+    @Override
+    public void notifyChildrenChanged(@NonNull String parentId, @NonNull Bundle options) {
+        mPendingReplies.drop(parentId, null);
+        mAdmission.drop(parentId, null);
+        mReplyCache.invalidate();
+        super.notifyChildrenChanged(parentId, options);
+    }
+
     @Override
     public BrowserRoot onGetRoot(
             @NonNull String clientPackageName, int clientUid, Bundle rootHints) {
@@ -127,48 +202,317 @@ public class TmaBrowser extends MediaBrowserServiceCompat {
 
     @Override
     public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaItem>> result) {
-        mLastLoadedNodeId = parentId;
-        getMediaItemsWithDelay(parentId, result, null);
+        onLoadChildren(parentId, result, Bundle.EMPTY);
     }
 
     @Override
-    public void onSearch(final String query, final Bundle extras, Result<List<MediaItem>> result) {
-        getMediaItemsWithDelay(mLastLoadedNodeId, result, query);
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaItem>> result,
+            @NonNull Bundle options) {
+        RemoteUserInfo client = getCurrentBrowserInfo();
+        switch (mAdmission.admit(client.getPackageName(), parentId,
+                () -> loadChildren(parentId, result, options, client, true))) {
+            case STARTED:
+                loadChildren(parentId, result, options, client, false);
+                break;
+            case QUEUED:
+                result.detach();
+                break;
+            case REJECTED:
+                result.sendResult(null);
+                break;
+        }
     }
 
-    private void getMediaItemsWithDelay(@NonNull String parentId,
-            @NonNull Result<List<MediaItem>> result, @Nullable String filter) {
-        // TODO: allow per item override of the delay ?
-        TmaNodeReplyDelay delay = mPrefs.mRootReplyDelay.getValue();
-        Runnable task = () -> {
-            TmaMediaItem node;
-            if (TmaAccountType.NONE.equals(mPrefs.mAccountType.getValue())) {
-                node = null;
-            } else if (ROOT_ID.equals(parentId)) {
-                node = mLibrary.getRoot(mPrefs.mRootNodeType.getValue());
-            } else {
-                node = mLibrary.getMediaItemById(parentId);
+    /** Replies to a request admitted by {@link #mAdmission}, whose result might be detached. */
+    private void loadChildren(String parentId, Result<List<MediaItem>> result, Bundle options,
+            RemoteUserInfo client, boolean detached) {
+        TmaPrefs prefs = mPrefs;
+        String clientPackage = client.getPackageName();
+        // The client browses another node, its prefetched nodes are less likely to be next.
+        mPrefetcher.cancel(clientPackage);
+        Consumer<List<MediaItem>> consumer = items -> {
+            result.sendResult(items);
+            // The items played from this reply are queued with the children of this node.
+            mLibrary.onNodeBrowsed(ROOT_ID.equals(parentId) ? null : parentId);
+            mAdmission.finish(clientPackage, true);
+        };
+        Runnable onDropped = () -> mAdmission.finish(clientPackage, false);
+        String key = getReplyKey(prefs, parentId, options);
+        if (mReplyCache.reply(key, consumer)) return;
+        if (mPendingReplies.join(key, parentId, client, consumer, onDropped)) {
+            if (!detached) {
+                result.detach();
             }
+            return;
+        }
+        long generation = mReplyCache.getGeneration();
+        // Prefetched once per computed reply, rather than for each reply sharing it.
+        TmaPendingReplies.Task task = mPendingReplies.newTask(key, Priority.BROWSE, items -> {
+            mReplyCache.put(key, generation, items);
+            mPrefetcher.prefetch(clientPackage, parentId, items);
+        });
+        task.addReply(parentId, client, consumer, onDropped);
+        getMediaItemsWithDelay(prefs, result, detached, task, () -> {
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            List<MediaItem> items = getMediaItems(prefs, parentId, options);
+            if (!ROOT_ID.equals(parentId)) {
+                mPrefetcher.onNodeLoaded(parentId, SystemClock.elapsedRealtimeNanos() - startNanos);
+            }
+            return items;
+        });
+    }
 
-            if (node == null) {
-                result.sendResult(null);
-            } else {
-                List<MediaItem> items = new ArrayList<>(node.mChildren.size());
-                for (TmaMediaItem child : node.mChildren) {
-                    MediaItem item = child.toMediaItem();
-                    CharSequence title = item.getDescription().getTitle();
-                    if (filter == null || (title != null && title.toString().contains(filter))) {
-                        items.add(item);
-                    }
-                }
+    /** Returns a key for everything the reply of {@link #getMediaItems} depends on. */
+    private static String getReplyKey(TmaPrefs prefs, String parentId, @Nullable Bundle options) {
+        int page = (options != null) ? options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1) : -1;
+        int pageSize = (options != null)
+                ? options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1) : -1;
+        return parentId + '/' + page + '/' + pageSize + '/' + prefs.mAccountType.getValue()
+                + '/' + prefs.mRootNodeType.getValue() + '/' + prefs.mReplyByteBudget.getValue();
+    }
+
+    @Override
+    public void onSubscribe(String id, Bundle option) {
+        super.onSubscribe(id, option);
+        // The file of the root is always kept.
+        if (!ROOT_ID.equals(id)) {
+            mLibrary.pin(id);
+        }
+    }
+
+    @Override
+    public void onUnsubscribe(String id) {
+        super.onUnsubscribe(id);
+        RemoteUserInfo client = getCurrentBrowserInfo();
+        mPendingReplies.drop(id, client);
+        mAdmission.drop(id, client.getPackageName());
+        mPrefetcher.cancel(client.getPackageName(), id);
+        if (!ROOT_ID.equals(id)) {
+            mLibrary.unpin(id);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        TmaLibrary.ReleaseTier tier;
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            tier = TmaLibrary.ReleaseTier.ALL_BUT_ROOT;
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            tier = TmaLibrary.ReleaseTier.UNPINNED_FILES;
+        } else {
+            tier = TmaLibrary.ReleaseTier.CONVERTED_CACHES;
+        }
+        releaseMemory(tier, "trim level " + level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        releaseMemory(TmaLibrary.ReleaseTier.ALL_BUT_ROOT, "low memory");
+    }
+
+    private void releaseMemory(TmaLibrary.ReleaseTier tier, String reason) {
+        for (TmaSearchSession session : mSearchSessions.values()) {
+            session.releaseMatches();
+        }
+        mReplyCache.invalidate();
+        long bytes = mLibrary.releaseMemory(tier);
+        Log.i(TAG, "Released " + tier + " (" + reason + "): " + bytes / 1024 + "KB");
+    }
+
+    @Override
+    public void onSearch(final String query, final Bundle extras, Result<List<MediaItem>> result) {
+        TmaPrefs prefs = mPrefs;
+        String clientPackage = getCurrentBrowserInfo().getPackageName();
+        TmaSearchSession session = mSearchSessions.get(clientPackage);
+        if (session == null) {
+            session = new TmaSearchSession(mLibrary);
+            mSearchSessions.put(clientPackage, session);
+        }
+        TmaSearchSession searchSession = session;
+        long searchId = session.start(result);
+        TmaPendingReplies.Task task = mPendingReplies.newTask(null, Priority.SEARCH, items -> { });
+        task.addReply(null, getCurrentBrowserInfo(), items -> {
+            if (searchSession.finish(searchId)) {
                 result.sendResult(items);
             }
-        };
+        }, () -> searchSession.cancel(searchId));
+        getMediaItemsWithDelay(prefs, result, false, task,
+                () -> searchMediaItems(prefs, searchSession, searchId, query));
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Player:");
+        mPlayer.dump(writer, "  ");
+        writer.println("Library:");
+        mLibrary.dump(writer, "  ");
+        writer.println("Reply cache:");
+        mReplyCache.dump(writer, "  ");
+        writer.println("Admission:");
+        mAdmission.dump(writer, "  ");
+        writer.println("Pending replies:");
+        mPendingReplies.dump(writer, "  ");
+        writer.println("Scheduler:");
+        mScheduler.dump(writer, "  ");
+        writer.println("Prefetcher:");
+        mPrefetcher.dump(writer, "  ");
+        writer.println("Search sessions:");
+        for (Map.Entry<String, TmaSearchSession> entry : mSearchSessions.entrySet()) {
+            writer.println("  " + entry.getKey() + ":");
+            entry.getValue().dump(writer, "    ");
+        }
+        if (Arrays.asList(args).contains(DUMP_FOOTPRINT_ARG)) {
+            runDumpCheck(writer, "Catalog footprint", TmaCatalogFootprint::dump);
+        }
+        if (Arrays.asList(args).contains(DUMP_READER_ARG)) {
+            runDumpCheck(writer, "Reader benchmark", TmaReaderBenchmark::dump);
+        }
+        if (Arrays.asList(args).contains(DUMP_SCHEDULER_ARG)) {
+            runDumpCheck(writer, "Scheduler benchmark", TmaSchedulerBenchmark::dump);
+        }
+        if (Arrays.asList(args).contains(DUMP_SEARCH_CHECK_ARG)) {
+            runDumpCheck(writer, "Search index check", TmaSearchIndexCheck::dump);
+        }
+    }
+
+    /**
+     * Runs a self check or benchmark requested by a dump argument on a new thread rather than on
+     * the dump (binder) thread, and logs its report. Only on debuggable builds, so that release
+     * builds don't expose them.
+     */
+    private static void runDumpCheck(PrintWriter writer, String title,
+            BiConsumer<PrintWriter, String> check) {
+        if (!Build.IS_DEBUGGABLE) {
+            writer.println(title + ": only available on debuggable builds");
+            return;
+        }
+        writer.println(title + ": running, the report is logged with the " + TAG + " tag");
+        new Thread(() -> {
+            StringWriter report = new StringWriter();
+            check.accept(new PrintWriter(report), "  ");
+            Log.i(TAG, title + ":");
+            for (String line : report.toString().split("\n")) {
+                Log.i(TAG, line);
+            }
+        }, title).start();
+    }
+
+    /**
+     * Computes the items with the supplier and delivers them to the replies of the task (on the
+     * main thread) according to the delay and thread prefs, unless the task is cancelled first.
+     * The result is detached if it isn't already and the items aren't delivered right away.
+     */
+    private void getMediaItemsWithDelay(TmaPrefs prefs, @NonNull Result<List<MediaItem>> result,
+            boolean detached, TmaPendingReplies.Task task, Supplier<List<MediaItem>> supplier) {
+        // TODO: allow per item override of the delay ?
+        TmaNodeReplyDelay delay = prefs.mRootReplyDelay.getValue();
+        boolean onWorkers = TmaReplyThread.WORKERS.equals(prefs.mReplyThread.getValue());
+        if (delay == TmaNodeReplyDelay.NONE && !onWorkers) {
+            task.deliver(supplier.get());
+            return;
+        }
+
+        if (!detached) {
+            result.detach();
+        }
+        TmaScheduler scheduler = mScheduler;
+        Runnable runnable;
+        if (onWorkers) {
+            // The items are computed by a worker but always delivered on the main thread.
+            runnable = () -> {
+                if (scheduler.isShutdown()) return;
+                task.submit(() -> {
+                    if (task.isCancelled()) return;
+                    Runnable delivery;
+                    try {
+                        List<MediaItem> items = supplier.get();
+                        delivery = () -> task.deliver(items);
+                    } catch (RuntimeException e) {
+                        // The replies must still be answered, and release their admission.
+                        Log.e(TAG, "Failed to compute the items of a reply", e);
+                        delivery = task::fail;
+                    }
+                    scheduler.postFromAnyThread(task.getPriority(), delivery);
+                });
+            };
+        } else {
+            runnable = () -> task.deliver(supplier.get());
+        }
         if (delay == TmaNodeReplyDelay.NONE) {
-            task.run();
+            runnable.run();
         } else {
-            result.detach();
-            mHandler.postDelayed(task, delay.mReplyDelayMs);
+            task.postDelayed(runnable, delay.mReplyDelayMs);
+        }
+    }
+
+    /**
+     * Returns the page of children requested by the options (see
+     * {@link MediaBrowserCompat#EXTRA_PAGE}), or as many children as the
+     * {@link TmaPrefs#mReplyByteBudget} allows. Can be called from any thread.
+     */
+    @Nullable
+    private List<MediaItem> getMediaItems(TmaPrefs prefs, @Nullable String parentId,
+            @Nullable Bundle options) {
+        TmaMediaItem node;
+        if (TmaAccountType.NONE.equals(prefs.mAccountType.getValue())) {
+            node = null;
+        } else if (ROOT_ID.equals(parentId)) {
+            node = mLibrary.getRoot(prefs.mRootNodeType.getValue());
+        } else {
+            node = mLibrary.getMediaItemById(parentId);
+        }
+        if (node == null) return null;
+        // The items played from this reply are queued with the children of this node.
+        mLibrary.onNodeLoaded(ROOT_ID.equals(parentId) ? null : parentId, node);
+
+        List<TmaMediaItem> children = node.getChildren();
+        int page = (options != null) ? options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1) : -1;
+        int pageSize = (options != null)
+                ? options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1) : -1;
+        boolean paged = page >= 0 && pageSize > 0;
+        if (paged) {
+            int fromIndex = (int) Math.min((long) page * pageSize, children.size());
+            int toIndex = (int) Math.min((long) fromIndex + pageSize, children.size());
+            children = children.subList(fromIndex, toIndex);
+        }
+
+        int byteBudget = paged ? 0 : prefs.mReplyByteBudget.getValue().mByteBudget;
+        int replyBytes = 0;
+        List<MediaItem> items = new ArrayList<>(children.size());
+        for (TmaMediaItem child : children) {
+            MediaItem item = child.toMediaItem();
+            if (byteBudget > 0) {
+                replyBytes += child.getParcelSize();
+                if (replyBytes > byteBudget) {
+                    Log.w(TAG, "Truncated reply for: " + parentId + " to " + items.size()
+                            + " of " + children.size() + " children, the rest can be"
+                            + " loaded with EXTRA_PAGE");
+                    break;
+                }
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * Searches all the loaded items, returns null if a newer search of the session started.
+     * Can be called from any thread.
+     */
+    @Nullable
+    private List<MediaItem> searchMediaItems(TmaPrefs prefs, TmaSearchSession session,
+            long searchId, @Nullable String query) {
+        if (TmaAccountType.NONE.equals(prefs.mAccountType.getValue())) return null;
+        if (query == null) return new ArrayList<>();
+
+        List<TmaMediaItem> matches = session.search(searchId, query, MAX_SEARCH_RESULTS);
+        if (matches == null) return null;
+        List<MediaItem> items = new ArrayList<>(matches.size());
+        for (TmaMediaItem match : matches) {
+            items.add(match.toMediaItem());
         }
+        return items;
     }
 }
@@ -16,36 +16,170 @@
 
 package com.android.car.media.testmediaapp;
 
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_DISPLAY_SUBTITLE;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_TITLE;
+
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import com.android.car.media.testmediaapp.loader.TmaCatalogGenerator;
 import com.android.car.media.testmediaapp.loader.TmaLoader;
+import com.android.car.media.testmediaapp.loader.TmaMediaIdIndex;
 import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaBrowseNodeType;
+import com.android.car.media.testmediaapp.prefs.TmaPrefs;
 
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Delegates the loading of {@link TmaMediaItem}s to {@link TmaLoader} and caches the results
- * for {@link TmaBrowser}.
+ * for {@link TmaBrowser}. Safe to use from several threads: each file is loaded (and each include
+ * expanded) only once, concurrent requests for the same file wait for the first one. When the
+ * estimated size of the cached items exceeds {@link TmaPrefs#mCacheBudget}, the least recently
+ * used files are evicted, unless they hold or are included by a pinned item (see {@link #pin} and
+ * {@link #setActiveItem}). Evicted files are loaded again when one of their items is requested.
+ * Under memory pressure, more of the caches can be released with {@link #releaseMemory}.
  */
 class TmaLibrary {
 
     private static final String TAG = "TmaLibrary";
 
+    /** Rough retained size of a cached item: the item, its metadata and its cached replies. */
+    private static final int ESTIMATED_ITEM_BYTES = 400;
+    /** Rough size of a converted {@link android.support.v4.media.MediaBrowserCompat.MediaItem}. */
+    private static final int ESTIMATED_MEDIA_ITEM_BYTES = 300;
+    /** Rough size of a built {@link android.support.v4.media.MediaMetadataCompat}. */
+    private static final int ESTIMATED_METADATA_BYTES = 250;
+    /** How many of the last browsed nodes are candidate queues, see {@link #getQueue}. */
+    private static final int MAX_BROWSED_NODES = 8;
+
+    /** What {@link #releaseMemory} drops, each tier also releases what the previous ones do. */
+    enum ReleaseTier {
+        /** The media items and metadata built for the replies, and the search index. */
+        CONVERTED_CACHES,
+        /** The files that aren't pinned, except the file of the root. */
+        UNPINNED_FILES,
+        /** Every file except the file of the root, even the pinned ones. */
+        ALL_BUT_ROOT
+    }
+
     private final TmaLoader mLoader;
+    private final TmaPrefs mPrefs;
     private final Map<TmaBrowseNodeType, String> mRootAssetPaths = new HashMap<>(5);
 
-    /** Stores the root item of each loaded media asset file, keyed by the file's path. */
-    private final Map<String, TmaMediaItem> mCachedFilesByPath = new HashMap<>(50);
+    /** Loads of the media asset files, keyed by the file's path. Failed loads are removed. */
+    private final Map<String, FutureTask<LoadedFile>> mCachedFilesByPath =
+            new ConcurrentHashMap<>(50);
+
+    /**
+     * The loaded media asset files that weren't evicted, in loading order so that the first
+     * loaded item wins when media ids are duplicated.
+     */
+    private final List<LoadedFile> mLoadedFiles = new CopyOnWriteArrayList<>();
+
+    /**
+     * Stores every materialized item of every loaded media asset file, by media id handle.
+     * Items that haven't been materialized yet are found through {@link #findDescendant}.
+     */
+    private final TmaMediaItemTable mMediaItems = new TmaMediaItemTable();
+
+    /**
+     * Stores the items with an include merged with the children of the included file, keyed by
+     * media id. Includes are expanded once per including item, so recursive structures cost at
+     * most one expansion per distinct including item.
+     */
+    private final Map<String, FutureTask<TmaMediaItem>> mExpandedIncludes =
+            new ConcurrentHashMap<>();
+
+    /** Indexes the items of {@link #mMediaItems} as they are cached. */
+    private final TmaSearchIndex mSearchIndex = new TmaSearchIndex();
+
+    /** Held while whole files are added to {@link #mSearchIndex}, see {@link #match}. */
+    private final Object mIndexingLock = new Object();
+
+    /** Guards the cached items of each file, the pins and the counters below. */
+    private final Object mCacheLock = new Object();
+    /** The file of each cached item, by media id handle. */
+    private LoadedFile[] mFilesByHandle = new LoadedFile[512];
+    private final Map<String, Integer> mPinCounts = new HashMap<>();
+    @Nullable
+    private String mActiveMediaId;
+    @Nullable
+    private String mQueueMediaId;
+    private long mCachedBytes;
+    /** Incremented on each access to a file, orders the files for eviction. */
+    private long mAccessClock;
+    private long mItemHitCount;
+    private long mItemMissCount;
+    private long mFileRequestCount;
+    private long mFileLoadCount;
+    private long mEvictionCount;
+    private long mEvictedBytes;
+    /** Indexed by {@link ReleaseTier} ordinal. */
+    private final long[] mReleaseCounts = new long[ReleaseTier.values().length];
+    private final long[] mReleasedBytes = new long[ReleaseTier.values().length];
+
+    /**
+     * The last browsed nodes by media id (null for the root), least recently browsed first. Kept
+     * as built for the replies, so that {@link #getQueue} doesn't look them up again.
+     */
+    private final Map<String, TmaMediaItem> mBrowsedNodes =
+            new LinkedHashMap<String, TmaMediaItem>(MAX_BROWSED_NODES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TmaMediaItem> eldest) {
+                    return size() > MAX_BROWSED_NODES;
+                }
+            };
+
+    /** Locates the items of the files that haven't been loaded yet, loaded on the first miss. */
+    @Nullable
+    private volatile TmaMediaIdIndex mMediaIdIndex;
 
-    /** Stores every item of every loaded media asset file, keyed by the media id. */
-    private final Map<String, TmaMediaItem> mMediaItemsByMediaId = new HashMap<>(500);
+    /** A loaded media asset file, and what it added to the caches. */
+    private static final class LoadedFile {
+        final String mPath;
+        final TmaMediaItem mRoot;
+
+        /** Guarded by mCacheLock. */
+        final BitSet mHandles = new BitSet();
+        /**
+         * Keys of the {@link #mExpandedIncludes} holding items of this file, as the including
+         * item or as the included children.
+         */
+        final Set<String> mExpansionKeys = new HashSet<>();
+        long mBytes;
+        long mLastAccess;
+        boolean mEvicted;
+
+        /** Whether its whole tree was added to the search index. Guarded by mIndexingLock. */
+        boolean mFullyIndexed;
+
+        LoadedFile(String path, TmaMediaItem root) {
+            mPath = path;
+            mRoot = root;
+        }
+    }
 
-    TmaLibrary(TmaLoader loader) {
+    TmaLibrary(TmaLoader loader, TmaPrefs prefs) {
         mLoader = loader;
+        mPrefs = prefs;
         mRootAssetPaths.put(TmaBrowseNodeType.NULL, null);
         mRootAssetPaths.put(TmaBrowseNodeType.EMPTY, "media_items/empty.json");
         mRootAssetPaths.put(TmaBrowseNodeType.NODE_CHILDREN, "media_items/only_nodes.json");
@@ -55,42 +189,526 @@ class TmaLibrary {
 
     @Nullable
     TmaMediaItem getRoot(TmaBrowseNodeType rootType) {
+        if (rootType == TmaBrowseNodeType.GENERATED) {
+            return createGenerator().getRoot();
+        }
         String filePath = mRootAssetPaths.get(rootType);
         return (filePath != null) ? loadAssetFile(filePath) : null;
     }
 
     @Nullable
-    TmaMediaItem getMediaItemById(String mediaId) {
-        TmaMediaItem result = mMediaItemsByMediaId.get(mediaId);
+    TmaMediaItem getMediaItemById(@Nullable String mediaId) {
+        if (mediaId == null) return null;
+        if (TmaCatalogGenerator.isGeneratedId(mediaId)) {
+            // Generated items are cheap to rebuild and too many to be cached.
+            TmaCatalogGenerator generator = TmaCatalogGenerator.fromMediaId(mediaId);
+            return (generator != null) ? generator.getItem(mediaId) : null;
+        }
+
+        TmaMediaItem result = getCachedItem(mediaId);
+        if (result == null) {
+            result = findDescendant(mediaId);
+        }
+        if (result == null) {
+            result = findInIndexedFile(mediaId);
+        }
         // Processing includes only on request allows recursive structures :-)
         if (result != null && !TextUtils.isEmpty(result.mInclude)) {
-            result = result.append(loadAssetFile(result.mInclude).mChildren);
+            result = expandInclude(result);
         }
         return result;
     }
 
-    private TmaMediaItem loadAssetFile(String filePath) {
-        TmaMediaItem result = mCachedFilesByPath.get(filePath);
-        if (result == null) {
-            result = mLoader.loadAssetFile(filePath);
-            if (result != null) {
-                mCachedFilesByPath.put(filePath, result);
-                cacheMediaItem(result);
+    /** Keeps the file of the given media id cached, until {@link #unpin} is called as often. */
+    void pin(String mediaId) {
+        synchronized (mCacheLock) {
+            mPinCounts.merge(mediaId, 1, Integer::sum);
+        }
+    }
+
+    void unpin(String mediaId) {
+        synchronized (mCacheLock) {
+            Integer count = mPinCounts.get(mediaId);
+            if (count == null) return;
+            if (count <= 1) {
+                mPinCounts.remove(mediaId);
             } else {
+                mPinCounts.put(mediaId, count - 1);
+            }
+        }
+    }
+
+    /** Keeps the files of the given item and of its queue (see {@link #getQueue}) cached. */
+    void setActiveItem(@Nullable TmaMediaItem item, @Nullable TmaMediaItem queue) {
+        synchronized (mCacheLock) {
+            mActiveMediaId = (item != null) ? item.getMediaId() : null;
+            mQueueMediaId = (queue != null) ? queue.getMediaId() : null;
+        }
+    }
+
+    /**
+     * Records the node whose children a reply was built from, null for the root. Can be called
+     * from any thread.
+     */
+    void onNodeLoaded(@Nullable String mediaId, TmaMediaItem node) {
+        synchronized (mBrowsedNodes) {
+            mBrowsedNodes.put(mediaId, node);
+        }
+    }
+
+    /**
+     * Records that a client was sent the children of the node, null for the root. The reply
+     * might come from a cache, the node recorded by {@link #onNodeLoaded} becomes the most
+     * recently browsed one.
+     */
+    void onNodeBrowsed(@Nullable String mediaId) {
+        synchronized (mBrowsedNodes) {
+            mBrowsedNodes.get(mediaId);
+        }
+    }
+
+    /**
+     * Returns the node whose playable children are the queue of the item. The items of an
+     * included file are listed by each of the items including it (and by the root of the file),
+     * so the last browsed node listing the item is used, or else its parent.
+     */
+    @Nullable
+    TmaMediaItem getQueue(TmaMediaItem item) {
+        String itemId = item.getMediaId();
+        if (itemId == null || TmaCatalogGenerator.isGeneratedId(itemId)) {
+            // Generated items are rebuilt on each lookup, and never included.
+            return item.getParent();
+        }
+        List<TmaMediaItem> nodes;
+        synchronized (mBrowsedNodes) {
+            nodes = new ArrayList<>(mBrowsedNodes.values());
+        }
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            TmaMediaItem node = nodes.get(i);
+            if (node.getPlayableIndex(item) >= 0) return node;
+        }
+        return item.getParent();
+    }
+
+    private TmaCatalogGenerator createGenerator() {
+        return new TmaCatalogGenerator(mPrefs.mGeneratorSeed.getValue().mSeed,
+                mPrefs.mGeneratorDepth.getValue().mDepth,
+                mPrefs.mGeneratorFanOut.getValue().mFanOut,
+                mPrefs.mGeneratorPlayableRatio.getValue().mPercent,
+                mPrefs.mGeneratorTitleLength.getValue().mLength,
+                mPrefs.mGeneratorArt.getValue().mPercent);
+    }
+
+    /**
+     * Returns at most maxResults items of the loaded files matching the query, best matches
+     * first. The first search materializes the items of the loaded files that weren't yet, so
+     * that they can all be found.
+     */
+    List<TmaMediaItem> search(String query, int maxResults) {
+        return getBestMatches(match(query, null), maxResults);
+    }
+
+    /** Returns all the matches of the query, see {@link TmaSearchIndex#match}. */
+    TmaSearchIndex.Matches match(String query, @Nullable TmaSearchIndex.Matches previous) {
+        indexLoadedFiles();
+        return mSearchIndex.match(query, previous);
+    }
+
+    List<TmaMediaItem> getBestMatches(TmaSearchIndex.Matches matches, int maxResults) {
+        return mSearchIndex.getBestItems(matches, maxResults);
+    }
+
+    /** Releases the threads of the loader, the files are still loaded on the calling thread. */
+    void release() {
+        mLoader.release();
+    }
+
+    /**
+     * Releases the caches of the given tier (and of the lower tiers), returns the estimated
+     * number of bytes released. Whatever is released is rebuilt or loaded again on demand.
+     */
+    long releaseMemory(ReleaseTier tier) {
+        long bytes = releaseConvertedCaches();
+        if (tier != ReleaseTier.CONVERTED_CACHES) {
+            // The browsed nodes would keep the evicted files in memory.
+            synchronized (mBrowsedNodes) {
+                mBrowsedNodes.clear();
+            }
+            String rootPath = mRootAssetPaths.get(mPrefs.mRootNodeType.getValue());
+            synchronized (mCacheLock) {
+                for (LoadedFile file : mLoadedFiles) {
+                    if (!file.mPath.equals(rootPath)
+                            && (tier == ReleaseTier.ALL_BUT_ROOT || !isPinned(file))) {
+                        bytes += file.mBytes;
+                        evict(file);
+                    }
+                }
+            }
+        }
+        if (tier == ReleaseTier.ALL_BUT_ROOT) {
+            // Loaded again from its cache file on the next miss.
+            mMediaIdIndex = null;
+        }
+        synchronized (mCacheLock) {
+            mReleaseCounts[tier.ordinal()]++;
+            mReleasedBytes[tier.ordinal()] += bytes;
+        }
+        return bytes;
+    }
+
+    private long releaseConvertedCaches() {
+        long bytes = 0;
+        for (int handle = 0; handle < mMediaItems.size(); handle++) {
+            TmaMediaItem item = mMediaItems.get(handle);
+            if (item != null && item.releaseMediaItem()) {
+                bytes += ESTIMATED_MEDIA_ITEM_BYTES;
+            }
+        }
+        bytes += (long) ESTIMATED_METADATA_BYTES * TmaLoader.releaseMetadataCache();
+        synchronized (mIndexingLock) {
+            bytes += mSearchIndex.clear();
+            // The cached items are added back to the index on the next search.
+            for (LoadedFile file : mLoadedFiles) {
+                file.mFullyIndexed = false;
+            }
+        }
+        return bytes;
+    }
+
+    /** Prints the size of the caches and their hit and eviction counters. */
+    void dump(PrintWriter writer, String prefix) {
+        synchronized (mCacheLock) {
+            writer.println(prefix + "files: " + mLoadedFiles.size() + " cached: "
+                    + mCachedBytes / 1024 + "KB budget: "
+                    + mPrefs.mCacheBudget.getValue().mByteBudget / 1024 + "KB pinned ids: "
+                    + mPinCounts.size());
+            writer.println(prefix + "item lookups hits: " + mItemHitCount + " misses: "
+                    + mItemMissCount);
+            writer.println(prefix + "file requests: " + mFileRequestCount + " loads: "
+                    + mFileLoadCount);
+            writer.println(prefix + "evictions: " + mEvictionCount + " evicted: "
+                    + mEvictedBytes / 1024 + "KB");
+            for (ReleaseTier tier : ReleaseTier.values()) {
+                writer.println(prefix + "released " + tier + ": " + mReleaseCounts[tier.ordinal()]
+                        + " times, " + mReleasedBytes[tier.ordinal()] / 1024 + "KB");
+            }
+        }
+    }
+
+    private void indexLoadedFiles() {
+        // Evicted files aren't searched anymore, until they are loaded again.
+        synchronized (mIndexingLock) {
+            for (LoadedFile file : mLoadedFiles) {
+                if (!file.mFullyIndexed) {
+                    file.mFullyIndexed = true;
+                    indexTree(file, file.mRoot);
+                }
+            }
+        }
+    }
+
+    /** Caches the whole tree of the given item, materializing it, parents first. */
+    private void indexTree(LoadedFile file, TmaMediaItem item) {
+        Deque<TmaMediaItem> stack = new ArrayDeque<>();
+        stack.push(item);
+        while (!stack.isEmpty()) {
+            TmaMediaItem next = stack.pop();
+            String key = next.getMediaId();
+            if (key != null) {
+                cacheItem(file, key, next);
+            }
+            pushChildren(stack, next.getChildren());
+        }
+    }
+
+    /** Pushes the children in reverse order, so that they are popped in order. */
+    private static void pushChildren(Deque<TmaMediaItem> stack, List<TmaMediaItem> children) {
+        for (int i = children.size() - 1; i >= 0; i--) {
+            stack.push(children.get(i));
+        }
+    }
+
+    /**
+     * Returns the item merged with the children of its included file. The expansion is dropped
+     * when either the file of the item or the included file is evicted.
+     */
+    private TmaMediaItem expandInclude(TmaMediaItem item) {
+        String key = item.getMediaId();
+        TmaMediaItem result = getOnce(mExpandedIncludes, key, () -> {
+            LoadedFile included = loadFile(item.mInclude);
+            if (included == null) return null;
+            synchronized (mCacheLock) {
+                LoadedFile including = getFile(key);
+                if (included.mEvicted || including == null) {
+                    // Not kept, it would outlive the evicted file.
+                    mExpandedIncludes.remove(key);
+                } else {
+                    included.mExpansionKeys.add(key);
+                    including.mExpansionKeys.add(key);
+                }
+            }
+            return item.append(included.mRoot.getChildren());
+        });
+        return (result != null) ? result : item;
+    }
+
+    @Nullable
+    private TmaMediaItem loadAssetFile(String filePath) {
+        LoadedFile file = loadFile(filePath);
+        return (file != null) ? file.mRoot : null;
+    }
+
+    @Nullable
+    private LoadedFile loadFile(String filePath) {
+        LoadedFile result = getOnce(mCachedFilesByPath, filePath, () -> {
+            TmaMediaItem root = mLoader.loadAssetFile(filePath);
+            if (root == null) {
                 Log.e(TAG, "Unable to load: " + filePath);
+                return null;
+            }
+            LoadedFile file = new LoadedFile(filePath, root);
+            synchronized (mCacheLock) {
+                mFileLoadCount++;
             }
+            cacheMediaItem(file, root);
+            mLoadedFiles.add(file);
+            return file;
+        });
+        if (result != null) {
+            synchronized (mCacheLock) {
+                mFileRequestCount++;
+                result.mLastAccess = ++mAccessClock;
+            }
+            trimToBudget();
         }
         return result;
     }
 
-    private void cacheMediaItem(TmaMediaItem item) {
-        String key = item.getMediaId();
-        if (mMediaItemsByMediaId.putIfAbsent(key, item) == null) {
-            for (TmaMediaItem child : item.mChildren) {
-                cacheMediaItem(child);
+    /**
+     * Returns the value computed by the first caller for the given key. Concurrent callers wait
+     * for that computation rather than repeating it. Null results aren't kept, so that the next
+     * caller tries again.
+     */
+    @Nullable
+    private static <T> T getOnce(Map<String, FutureTask<T>> tasks, String key,
+            Callable<T> callable) {
+        FutureTask<T> task = tasks.get(key);
+        if (task == null) {
+            FutureTask<T> newTask = new FutureTask<>(callable);
+            task = tasks.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        try {
+            T result = task.get();
+            if (result == null) {
+                tasks.remove(key, task);
+            }
+            return result;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to get: " + key + " e: " + e.getCause());
+            tasks.remove(key, task);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Nullable
+    private TmaMediaItem getCachedItem(String mediaId) {
+        int handle = mMediaItems.getHandle(mediaId);
+        TmaMediaItem result = (handle >= 0) ? mMediaItems.get(handle) : null;
+        synchronized (mCacheLock) {
+            if (result == null) {
+                mItemMissCount++;
+                return null;
             }
-        } else {
-            Log.e(TAG, "Ignoring item with duplicate media id: " + key);
+            mItemHitCount++;
+            LoadedFile file = (handle < mFilesByHandle.length) ? mFilesByHandle[handle] : null;
+            if (file != null) {
+                file.mLastAccess = ++mAccessClock;
+            }
+        }
+        return result;
+    }
+
+    @Nullable
+    private TmaMediaItem findDescendant(String mediaId) {
+        for (LoadedFile file : mLoadedFiles) {
+            TmaMediaItem result = file.mRoot.findDescendant(mediaId);
+            if (result != null) {
+                cacheFoundItem(file, mediaId, result);
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /** Loads the file containing the given media id according to the {@link TmaMediaIdIndex}. */
+    @Nullable
+    private TmaMediaItem findInIndexedFile(String mediaId) {
+        String filePath = getMediaIdIndex().getFilePath(mediaId);
+        if (filePath == null) return null;
+
+        LoadedFile file = loadFile(filePath);
+        TmaMediaItem result = (file != null) ? file.mRoot.findDescendant(mediaId) : null;
+        if (result != null) {
+            cacheFoundItem(file, mediaId, result);
+        }
+        return result;
+    }
+
+    private TmaMediaIdIndex getMediaIdIndex() {
+        TmaMediaIdIndex index = mMediaIdIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = mMediaIdIndex;
+                if (index == null) {
+                    index = mLoader.loadMediaIdIndex(mRootAssetPaths.values());
+                    mMediaIdIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    private void cacheFoundItem(LoadedFile file, String mediaId, TmaMediaItem item) {
+        cacheItem(file, mediaId, item);
+        trimToBudget();
+    }
+
+    /**
+     * Caches the materialized tree of the given item, parents first. The subtree of an item
+     * with a duplicate media id is ignored.
+     */
+    private void cacheMediaItem(LoadedFile file, TmaMediaItem item) {
+        Deque<TmaMediaItem> stack = new ArrayDeque<>();
+        stack.push(item);
+        while (!stack.isEmpty()) {
+            TmaMediaItem next = stack.pop();
+            String key = next.getMediaId();
+            if (key != null && !cacheItem(file, key, next)) {
+                Log.e(TAG, "Ignoring item with duplicate media id: " + key);
+                continue;
+            }
+            pushChildren(stack, next.getMaterializedChildren());
+        }
+    }
+
+    /**
+     * Caches the item as part of the given file, and adds it to the search index. Returns false
+     * if an item was already cached for the media id, or if the file was evicted.
+     */
+    private boolean cacheItem(LoadedFile file, String mediaId, TmaMediaItem item) {
+        synchronized (mCacheLock) {
+            if (file.mEvicted) return false;
+            int handle = mMediaItems.putIfAbsent(mediaId, item);
+            if (handle < 0) {
+                // Already cached, but maybe not indexed anymore (see releaseConvertedCaches).
+                int cachedHandle = mMediaItems.getHandle(mediaId);
+                if (mMediaItems.get(cachedHandle) == item) {
+                    mSearchIndex.add(item, cachedHandle);
+                }
+                return false;
+            }
+
+            if (handle >= mFilesByHandle.length) {
+                mFilesByHandle = Arrays.copyOf(mFilesByHandle,
+                        Math.max(handle + 1, mFilesByHandle.length * 2));
+            }
+            mFilesByHandle[handle] = file;
+            file.mHandles.set(handle);
+            long bytes = estimateBytes(mediaId, item);
+            file.mBytes += bytes;
+            mCachedBytes += bytes;
+            mSearchIndex.add(item, handle);
+            return true;
+        }
+    }
+
+    private static long estimateBytes(String mediaId, TmaMediaItem item) {
+        CharSequence title = item.getMetadataText(METADATA_KEY_TITLE);
+        CharSequence subtitle = item.getMetadataText(METADATA_KEY_DISPLAY_SUBTITLE);
+        int chars = mediaId.length() + ((title != null) ? title.length() : 0)
+                + ((subtitle != null) ? subtitle.length() : 0);
+        // The strings are held by the metadata and by the cached description.
+        return ESTIMATED_ITEM_BYTES + 4L * chars;
+    }
+
+    /**
+     * Evicts the least recently used files until the cached items fit in the budget. The pinned
+     * files, the file of the current root and the last accessed file are kept.
+     */
+    private void trimToBudget() {
+        long budget = mPrefs.mCacheBudget.getValue().mByteBudget;
+        if (budget <= 0) return;
+
+        String rootPath = mRootAssetPaths.get(mPrefs.mRootNodeType.getValue());
+        synchronized (mCacheLock) {
+            while (mCachedBytes > budget) {
+                LoadedFile victim = null;
+                for (LoadedFile file : mLoadedFiles) {
+                    if (file.mLastAccess < mAccessClock && !file.mPath.equals(rootPath)
+                            && !isPinned(file)
+                            && (victim == null || file.mLastAccess < victim.mLastAccess)) {
+                        victim = file;
+                    }
+                }
+                if (victim == null) break;
+                evict(victim);
+            }
+        }
+    }
+
+    /** Returns the file of the cached item, or null. Must be called with mCacheLock held. */
+    @Nullable
+    private LoadedFile getFile(String mediaId) {
+        int handle = mMediaItems.getHandle(mediaId);
+        return (handle >= 0 && handle < mFilesByHandle.length) ? mFilesByHandle[handle] : null;
+    }
+
+    /** Must be called with mCacheLock held. */
+    private boolean isPinned(LoadedFile file) {
+        if (isInFile(file, mActiveMediaId) || isInFile(file, mQueueMediaId)) return true;
+        for (String mediaId : mPinCounts.keySet()) {
+            if (isInFile(file, mediaId)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the item is in the file, or includes it: the children of an include are
+     * shown from the included file. Must be called with mCacheLock held.
+     */
+    private boolean isInFile(LoadedFile file, @Nullable String mediaId) {
+        if (mediaId == null) return false;
+        int handle = mMediaItems.getHandle(mediaId);
+        if (handle < 0 || handle >= mFilesByHandle.length) return false;
+        if (mFilesByHandle[handle] == file) return true;
+        TmaMediaItem item = mMediaItems.get(handle);
+        return item != null && file.mPath.equals(item.mInclude);
+    }
+
+    /** Must be called with mCacheLock held. */
+    private void evict(LoadedFile file) {
+        file.mEvicted = true;
+        mLoadedFiles.remove(file);
+        mCachedFilesByPath.remove(file.mPath);
+        for (int handle = file.mHandles.nextSetBit(0); handle >= 0;
+                handle = file.mHandles.nextSetBit(handle + 1)) {
+            mMediaItems.remove(handle);
+            mSearchIndex.remove(handle);
+            mFilesByHandle[handle] = null;
+        }
+        for (String key : file.mExpansionKeys) {
+            mExpandedIncludes.remove(key);
         }
+        mCachedBytes -= file.mBytes;
+        mEvictionCount++;
+        mEvictedBytes += file.mBytes;
+        Log.d(TAG, "Evicted: " + file.mPath + " (" + file.mBytes / 1024 + "KB)");
     }
 }
@@ -28,6 +28,7 @@ import static com.android.car.media.common.MediaConstants.CONTENT_STYLE_LIST_ITE
 import static com.android.car.media.common.MediaConstants.CONTENT_STYLE_PLAYABLE_HINT;
 
 import android.os.Bundle;
+import android.os.Parcel;
 import android.support.v4.media.MediaBrowserCompat.MediaItem;
 import android.support.v4.media.MediaBrowserCompat.MediaItem.Flags;
 import android.support.v4.media.MediaDescriptionCompat;
@@ -37,7 +38,9 @@ import android.support.v4.media.session.MediaSessionCompat.QueueItem;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /** Our internal representation of media items. */
 public class TmaMediaItem {
@@ -74,14 +77,74 @@ public class TmaMediaItem {
     }
 
     private final @MediaItem.Flags int mFlags;
-    private final MediaMetadataCompat mMediaMetadata;
+    private final Metadata mMediaMetadata;
     private final ContentStyle mPlayableStyle;
     private final ContentStyle mBrowsableStyle;
 
-    /** Read only list. */
-    final List<TmaMediaItem> mChildren;
-    /** Read only list. */
-    private final List<TmaMediaItem> mPlayableChildren;
+    /**
+     * The metadata of an item. Stores can hold it in a more compact form than a
+     * {@link MediaMetadataCompat}, which is then only built when the item is sent.
+     */
+    public interface Metadata {
+        @Nullable
+        String getString(String key);
+
+        @Nullable
+        CharSequence getText(String key);
+
+        /** Returns 0 if the key is missing, like {@link MediaMetadataCompat#getLong}. */
+        long getLong(String key);
+
+        boolean containsKey(String key);
+
+        MediaMetadataCompat toMediaMetadata();
+
+        /** Returns metadata that is already held as a {@link MediaMetadataCompat}. */
+        static Metadata of(MediaMetadataCompat metadata) {
+            return new Metadata() {
+                @Override
+                public String getString(String key) {
+                    return metadata.getString(key);
+                }
+
+                @Override
+                public CharSequence getText(String key) {
+                    return metadata.getText(key);
+                }
+
+                @Override
+                public long getLong(String key) {
+                    return metadata.getLong(key);
+                }
+
+                @Override
+                public boolean containsKey(String key) {
+                    return metadata.containsKey(key);
+                }
+
+                @Override
+                public MediaMetadataCompat toMediaMetadata() {
+                    return metadata;
+                }
+            };
+        }
+    }
+
+    /** Creates the children of an item the first time they are needed. */
+    public interface ChildrenProvider {
+        List<TmaMediaItem> loadChildren();
+    }
+
+    /** Locates the descendants of an item without having to materialize its whole subtree. */
+    public interface DescendantIndex {
+        /**
+         * Returns the indexes of the children to follow from the indexed item to reach the item
+         * with the given media id, or null if there is no such descendant.
+         */
+        @Nullable
+        int[] getPath(String mediaId);
+    }
+
     /** Read only list. */
     final List<TmaCustomAction> mCustomActions;
     /** Read only list. Events triggered when starting the playback. */
@@ -89,33 +152,130 @@ public class TmaMediaItem {
     /** References another json file where to get extra children from. */
     final String mInclude;
 
-    private @Nullable TmaMediaItem mParent;
-    int mHearts;
+    /** Null once the children have been materialized. Guarded by this. */
+    private @Nullable ChildrenProvider mChildrenProvider;
+    /**
+     * Read only list, null until {@link #getChildren} is first called. Written last by
+     * {@link #setChildren} so that reading it publishes the other fields it sets.
+     */
+    private volatile @Nullable List<TmaMediaItem> mChildren;
+    /** Read only list, null until {@link #getChildren} is first called. */
+    private @Nullable List<TmaMediaItem> mPlayableChildren;
+    /** The indexes in {@link #mPlayableChildren}, built when {@link #getPlayableIndex} needs it. */
+    private volatile @Nullable Map<TmaMediaItem, Integer> mPlayableIndexes;
+    private volatile @Nullable DescendantIndex mDescendantIndex;
+
+    /**
+     * The first node to list this item. An included item is listed by each of its includers,
+     * the queue it is played in is the node the client browsed, see {@link TmaLibrary#getQueue}.
+     */
+    private volatile @Nullable TmaMediaItem mParent;
+    /** Index of this item in the playable children of {@link #mParent}, or -1. */
+    private int mPlayableIndex = -1;
+    /** Whether this item was created by {@link #append}. */
+    private boolean mIsIncludeExpansion;
+    private int mHearts;
+
+    /** Built on first use, cleared when the state it depends on changes. */
+    private volatile @Nullable MediaDescriptionCompat mDescription;
+    /** Built on first use, cleared along with {@link #mDescription}. */
+    private volatile @Nullable MediaItem mMediaItem;
+    /** The parcelled size of {@link #mMediaItem}, 0 until measured. */
+    private volatile int mParcelSize;
 
 
     public TmaMediaItem(@Flags int flags, ContentStyle playableStyle, ContentStyle browsableStyle,
-            MediaMetadataCompat metadata, List<TmaCustomAction> customActions,
+            Metadata metadata, List<TmaCustomAction> customActions,
             List<TmaMediaEvent> mediaEvents,
             List<TmaMediaItem> children, String include) {
+        this(flags, playableStyle, browsableStyle, metadata, customActions, mediaEvents,
+                (ChildrenProvider) null, include);
+        setChildren(children);
+    }
+
+    /** The children are only created when {@link #getChildren} is first called. */
+    public TmaMediaItem(@Flags int flags, ContentStyle playableStyle, ContentStyle browsableStyle,
+            Metadata metadata, List<TmaCustomAction> customActions,
+            List<TmaMediaEvent> mediaEvents,
+            @Nullable ChildrenProvider childrenProvider, String include) {
         mFlags = flags;
         mPlayableStyle = playableStyle;
         mBrowsableStyle = browsableStyle;
         mMediaMetadata = metadata;
         mCustomActions = Collections.unmodifiableList(customActions);
-        mChildren = Collections.unmodifiableList(children);
         mMediaEvents = Collections.unmodifiableList(mediaEvents);
         mInclude = include;
+        mChildrenProvider = childrenProvider;
+    }
+
+    /** Lets {@link #findDescendant} reach the items that haven't been materialized yet. */
+    public void setDescendantIndex(@Nullable DescendantIndex index) {
+        mDescendantIndex = index;
+    }
+
+    private void setChildren(List<TmaMediaItem> children) {
+        List<TmaMediaItem> readOnlyChildren = Collections.unmodifiableList(children);
         List<TmaMediaItem> playableChildren = new ArrayList<>(children.size());
-        for (TmaMediaItem child: mChildren) {
-            child.setParent(this);
-            if ((child.mFlags & FLAG_PLAYABLE) != 0) {
+        for (TmaMediaItem child: readOnlyChildren) {
+            // The first include expansion to reach a child keeps it, see append.
+            boolean playable = (child.mFlags & FLAG_PLAYABLE) != 0;
+            if (child.mParent == null || !child.mParent.mIsIncludeExpansion) {
+                child.setParent(this, playable ? playableChildren.size() : -1);
+            }
+            if (playable) {
                 playableChildren.add(child);
             }
         }
         mPlayableChildren = Collections.unmodifiableList(playableChildren);
+        mChildren = readOnlyChildren;
+    }
+
+    /**
+     * Returns the read only list of children, creating them if needed. Safe to call from any
+     * thread, the children are only created once.
+     */
+    public List<TmaMediaItem> getChildren() {
+        List<TmaMediaItem> children = mChildren;
+        if (children == null) {
+            synchronized (this) {
+                if (mChildren == null) {
+                    ChildrenProvider provider = mChildrenProvider;
+                    mChildrenProvider = null;
+                    setChildren((provider != null) ? provider.loadChildren()
+                            : Collections.<TmaMediaItem>emptyList());
+                }
+                children = mChildren;
+            }
+        }
+        return children;
+    }
+
+    /** Returns the children that have already been created, without creating the others. */
+    List<TmaMediaItem> getMaterializedChildren() {
+        List<TmaMediaItem> children = mChildren;
+        return (children != null) ? children : Collections.<TmaMediaItem>emptyList();
     }
 
-    private void setParent(@Nullable TmaMediaItem parent) {
+    /**
+     * Returns the descendant with the given media id (only materializing the items on its path),
+     * or null if the descendant is unknown or this item has no {@link DescendantIndex}.
+     */
+    @Nullable
+    TmaMediaItem findDescendant(String mediaId) {
+        int[] path = (mDescendantIndex != null) ? mDescendantIndex.getPath(mediaId) : null;
+        if (path == null) return null;
+
+        TmaMediaItem result = this;
+        for (int childIndex : path) {
+            List<TmaMediaItem> children = result.getChildren();
+            if (childIndex < 0 || childIndex >= children.size()) return null;
+            result = children.get(childIndex);
+        }
+        return result;
+    }
+
+    private void setParent(@Nullable TmaMediaItem parent, int playableIndex) {
+        mPlayableIndex = playableIndex;
         mParent = parent;
     }
 
@@ -124,30 +284,56 @@ public class TmaMediaItem {
         return mParent;
     }
 
+    boolean isPlayable() {
+        return (mFlags & FLAG_PLAYABLE) != 0;
+    }
+
+    @Nullable
+    TmaMediaItem getFirstPlayableChild() {
+        getChildren();
+        return mPlayableChildren.isEmpty() ? null : mPlayableChildren.get(0);
+    }
+
     TmaMediaItem getPlayableByIndex(long index) {
+        getChildren();
         return mPlayableChildren.get((int)index);
     }
 
-    @Nullable
-    TmaMediaItem getPrevious() {
-        if (mParent == null) return null;
-        List<TmaMediaItem> queueItems = mParent.mPlayableChildren;
-        int myIndex = queueItems.indexOf(this);
-        return (myIndex > 0) ? queueItems.get(myIndex - 1) : null;
+    int getPlayableCount() {
+        getChildren();
+        return mPlayableChildren.size();
     }
 
-    @Nullable
-    TmaMediaItem getNext() {
-        if (mParent == null) return null;
-        List<TmaMediaItem> queueItems = mParent.mPlayableChildren;
-        int myIndex = queueItems.indexOf(this);
-        return (myIndex < queueItems.size() - 1) ? queueItems.get(myIndex + 1) : null;
+    /**
+     * Returns the index of the child in the playable children of this item, or -1. The index
+     * stored by {@link #setChildren} is only valid for {@link #mParent}, the other nodes listing
+     * the child index their playable children on the first lookup.
+     */
+    int getPlayableIndex(TmaMediaItem child) {
+        getChildren();
+        if (child.mParent == this) return child.mPlayableIndex;
+        Map<TmaMediaItem, Integer> indexes = mPlayableIndexes;
+        if (indexes == null) {
+            // Racing threads build the same map.
+            indexes = new IdentityHashMap<>(mPlayableChildren.size());
+            for (int i = mPlayableChildren.size() - 1; i >= 0; i--) {
+                indexes.put(mPlayableChildren.get(i), i);
+            }
+            mPlayableIndexes = indexes;
+        }
+        Integer index = indexes.get(child);
+        return (index != null) ? index : -1;
     }
 
-    String getMediaId() {
+    public String getMediaId() {
         return mMediaMetadata.getString(METADATA_KEY_MEDIA_ID);
     }
 
+    @Nullable
+    CharSequence getMetadataText(String key) {
+        return mMediaMetadata.getText(key);
+    }
+
     /** Returns -1 if the duration key is unspecified or <= 0. */
     long getDuration() {
         long result = mMediaMetadata.getLong(METADATA_KEY_DURATION);
@@ -155,45 +341,100 @@ public class TmaMediaItem {
         return result;
     }
 
+    /**
+     * Returns a new item with the given children appended to the children of this item. The
+     * children become the children of the new item, unless another expansion already claimed
+     * them: the expansions are meant to be cached, and a child's parent must not depend on which
+     * expansion was built last.
+     */
     TmaMediaItem append(List<TmaMediaItem> children) {
-        List<TmaMediaItem> allChildren = new ArrayList<>(mChildren.size() + children.size());
-        allChildren.addAll(mChildren);
+        List<TmaMediaItem> ownChildren = getChildren();
+        List<TmaMediaItem> allChildren = new ArrayList<>(ownChildren.size() + children.size());
+        allChildren.addAll(ownChildren);
         allChildren.addAll(children);
-        return new TmaMediaItem(mFlags, mPlayableStyle, mBrowsableStyle, mMediaMetadata,
-                mCustomActions, mMediaEvents, allChildren, null);
+        TmaMediaItem result = new TmaMediaItem(mFlags, mPlayableStyle, mBrowsableStyle,
+                mMediaMetadata, mCustomActions, mMediaEvents, (ChildrenProvider) null, null);
+        result.mIsIncludeExpansion = true;
+        result.setChildren(allChildren);
+        return result;
     }
 
     void updateSessionMetadata(MediaSessionCompat session) {
-        session.setMetadata(mMediaMetadata);
+        session.setMetadata(mMediaMetadata.toMediaMetadata());
+    }
+
+    /** Returns the new number of hearts. */
+    synchronized int addHearts(int delta) {
+        mHearts += delta;
+        invalidateDescription();
+        return mHearts;
+    }
+
+    /** Drops the cached {@link MediaItem}, returns whether there was one. */
+    synchronized boolean releaseMediaItem() {
+        boolean released = mMediaItem != null || mDescription != null;
+        invalidateDescription();
+        return released;
     }
 
+    /** Must be called whenever state used by {@link #buildDescription} changes. */
+    private void invalidateDescription() {
+        mDescription = null;
+        mMediaItem = null;
+        mParcelSize = 0;
+    }
+
+    /** Returns a cached item, the same instance is shared by all the replies. */
     MediaItem toMediaItem() {
-        return new MediaItem(buildDescription(), mFlags);
+        MediaItem result = mMediaItem;
+        if (result == null) {
+            result = new MediaItem(getDescription(), mFlags);
+            mMediaItem = result;
+        }
+        return result;
+    }
+
+    /** Returns the size of {@link #toMediaItem} in a reply, measured once. */
+    int getParcelSize() {
+        int result = mParcelSize;
+        if (result == 0) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                toMediaItem().writeToParcel(parcel, 0);
+                result = parcel.dataSize();
+            } finally {
+                parcel.recycle();
+            }
+            mParcelSize = result;
+        }
+        return result;
+    }
+
+    private MediaDescriptionCompat getDescription() {
+        MediaDescriptionCompat result = mDescription;
+        if (result == null) {
+            result = buildDescription();
+            mDescription = result;
+        }
+        return result;
     }
 
     List<QueueItem> buildQueue() {
+        getChildren();
         int count = mPlayableChildren.size();
         List<QueueItem> queue = new ArrayList<>(count);
         for (int i = 0 ; i < count; i++) {
             TmaMediaItem child = mPlayableChildren.get(i);
-            queue.add(new QueueItem(child.buildDescription(), i));
+            queue.add(new QueueItem(child.getDescription(), i));
         }
         return queue;
     }
 
-    /** Returns the id of the item in the queue. */
-    long getQueueId() {
-        if (mParent != null) {
-            int index = mParent.mPlayableChildren.indexOf(this);
-            if (index >= 0) return index;
-        }
-        return MediaSessionCompat.QueueItem.UNKNOWN_ID;
-    }
-
     private MediaDescriptionCompat buildDescription() {
 
         // Use the default media description but add our extras.
-        MediaDescriptionCompat metadataDescription = mMediaMetadata.getDescription();
+        MediaDescriptionCompat metadataDescription =
+                mMediaMetadata.toMediaMetadata().getDescription();
 
         MediaDescriptionCompat.Builder bob = new MediaDescriptionCompat.Builder();
         bob.setMediaId(metadataDescription.getMediaId());
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Interns media ids into dense int handles, and maps the handles to the cached items. The ids
+ * are found through an open addressing table (linear probing) of handles, whose hash codes are
+ * kept alongside so that probing only compares the id strings of likely matches. Handles are
+ * never reused. Thread safe.
+ */
+class TmaMediaItemTable {
+
+    private static final int NO_HANDLE = -1;
+    private static final int INITIAL_CAPACITY = 512;
+
+    /** Handles by hash slot, the table is kept at most half full. */
+    private int[] mSlots = newSlots(INITIAL_CAPACITY * 2);
+    /** Indexed by handle. */
+    private int[] mHashes = new int[INITIAL_CAPACITY];
+    private String[] mMediaIds = new String[INITIAL_CAPACITY];
+    private TmaMediaItem[] mItems = new TmaMediaItem[INITIAL_CAPACITY];
+    private int mSize;
+
+    /** Returns the handle of the media id, a new one if the id wasn't interned yet. */
+    synchronized int intern(String mediaId) {
+        int hash = spread(mediaId.hashCode());
+        int slot = findSlot(mediaId, hash);
+        if (mSlots[slot] != NO_HANDLE) return mSlots[slot];
+
+        if (mSize == mMediaIds.length) {
+            int capacity = mSize * 2;
+            mHashes = Arrays.copyOf(mHashes, capacity);
+            mMediaIds = Arrays.copyOf(mMediaIds, capacity);
+            mItems = Arrays.copyOf(mItems, capacity);
+            rehash(capacity * 2);
+            slot = findSlot(mediaId, hash);
+        }
+        int handle = mSize++;
+        mHashes[handle] = hash;
+        mMediaIds[handle] = mediaId;
+        mSlots[slot] = handle;
+        return handle;
+    }
+
+    /** Returns the handle of the media id, or -1 if it wasn't interned. */
+    synchronized int getHandle(String mediaId) {
+        return mSlots[findSlot(mediaId, spread(mediaId.hashCode()))];
+    }
+
+    synchronized String getMediaId(int handle) {
+        return mMediaIds[handle];
+    }
+
+    /** Returns the item cached for the handle, or null. */
+    @Nullable
+    synchronized TmaMediaItem get(int handle) {
+        return mItems[handle];
+    }
+
+    /**
+     * Caches the item under its media id unless an item is already cached for that id. Returns
+     * the handle of the id, or -1 if another item was already cached.
+     */
+    synchronized int putIfAbsent(String mediaId, TmaMediaItem item) {
+        int handle = intern(mediaId);
+        if (mItems[handle] != null) return NO_HANDLE;
+        mItems[handle] = item;
+        return handle;
+    }
+
+    /** Removes the item cached for the handle, the handle stays assigned to its media id. */
+    synchronized void remove(int handle) {
+        mItems[handle] = null;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    private int findSlot(String mediaId, int hash) {
+        int mask = mSlots.length - 1;
+        int slot = hash & mask;
+        while (true) {
+            int handle = mSlots[slot];
+            if (handle == NO_HANDLE
+                    || (mHashes[handle] == hash && mMediaIds[handle].equals(mediaId))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash(int slotCount) {
+        mSlots = newSlots(slotCount);
+        int mask = slotCount - 1;
+        for (int handle = 0; handle < mSize; handle++) {
+            int slot = mHashes[handle] & mask;
+            while (mSlots[slot] != NO_HANDLE) {
+                slot = (slot + 1) & mask;
+            }
+            mSlots[slot] = handle;
+        }
+    }
+
+    private static int[] newSlots(int count) {
+        int[] slots = new int[count];
+        Arrays.fill(slots, NO_HANDLE);
+        return slots;
+    }
+
+    /** Ids sharing a prefix tend to differ in few bits, spreads them over the whole hash. */
+    private static int spread(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp;
+
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+
+import androidx.annotation.Nullable;
+import androidx.media.MediaSessionManager.RemoteUserInfo;
+
+import com.android.car.media.testmediaapp.TmaScheduler.Priority;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Tracks the replies of {@link TmaBrowser} that are sent after a delay or computed by a worker,
+ * so that they can be dropped once useless (invalidated node, unsubscribed client, destroyed
+ * service) instead of being computed against a newer state. Identical browse requests share one
+ * {@link Task} (see {@link #join}), which is cancelled when none of its replies is wanted
+ * anymore. Must be used on the main thread.
+ */
+class TmaPendingReplies {
+
+    private final TmaScheduler mScheduler;
+    private final Set<Task> mTasks = new LinkedHashSet<>();
+    /** The tasks that can be joined, by key. */
+    private final Map<String, Task> mTasksByKey = new HashMap<>();
+
+    private long mDeliveredCount;
+    private long mDroppedCount;
+    private long mFailedCount;
+    private long mCoalescedCount;
+    private long mCancelledTaskCount;
+
+    private static class Reply {
+        /** Null for search replies. */
+        @Nullable
+        final String mParentId;
+        @Nullable
+        final RemoteUserInfo mClient;
+        final Consumer<List<MediaItem>> mConsumer;
+        final Runnable mOnDropped;
+
+        Reply(@Nullable String parentId, @Nullable RemoteUserInfo client,
+                Consumer<List<MediaItem>> consumer, Runnable onDropped) {
+            mParentId = parentId;
+            mClient = client;
+            mConsumer = consumer;
+            mOnDropped = onDropped;
+        }
+    }
+
+    /** The computation of the items of one or more replies. */
+    class Task {
+        @Nullable
+        private final String mKey;
+        private final Priority mPriority;
+        private final Consumer<List<MediaItem>> mOnComputed;
+        private final List<Reply> mReplies = new ArrayList<>();
+        @Nullable
+        private Runnable mDelayedRunnable;
+        @Nullable
+        private Future<?> mFuture;
+        private volatile boolean mCancelled;
+
+        private Task(@Nullable String key, Priority priority,
+                Consumer<List<MediaItem>> onComputed) {
+            mKey = key;
+            mPriority = priority;
+            mOnComputed = onComputed;
+        }
+
+        /**
+         * Adds a reply, for the given client's request for the children of the parent. Either
+         * the consumer or onDropped is called.
+         */
+        void addReply(@Nullable String parentId, @Nullable RemoteUserInfo client,
+                Consumer<List<MediaItem>> consumer, Runnable onDropped) {
+            mReplies.add(new Reply(parentId, client, consumer, onDropped));
+        }
+
+        Priority getPriority() {
+            return mPriority;
+        }
+
+        /** Runs the computation after the delay, unless the task is cancelled before. */
+        void postDelayed(Runnable runnable, long delayMs) {
+            mDelayedRunnable = runnable;
+            mScheduler.postDelayed(mPriority, runnable, delayMs);
+        }
+
+        /** Queues the computation on a worker, skipped if the task is cancelled. */
+        void submit(Runnable runnable) {
+            mFuture = mScheduler.submit(mPriority, runnable);
+        }
+
+        /** Can be called from any thread, to skip the computation. */
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /** Passes the computed items to the replies, unless the task was cancelled. */
+        void deliver(@Nullable List<MediaItem> items) {
+            if (!finish()) return;
+            mOnComputed.accept(items);
+            for (Reply reply : mReplies) {
+                mDeliveredCount++;
+                reply.mConsumer.accept(items);
+            }
+        }
+
+        /**
+         * Passes null to the replies after the computation failed, unless the task was
+         * cancelled. Unlike with {@link #deliver}, onComputed isn't called.
+         */
+        void fail() {
+            if (!finish()) return;
+            for (Reply reply : mReplies) {
+                mFailedCount++;
+                reply.mConsumer.accept(null);
+            }
+        }
+
+        private boolean finish() {
+            if (mCancelled || !mTasks.remove(this)) return false;
+            if (mKey != null) {
+                mTasksByKey.remove(mKey, this);
+            }
+            return true;
+        }
+    }
+
+    TmaPendingReplies(TmaScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Returns a new task, which can be joined by the requests with the same key if it isn't
+     * null. The items are passed to onComputed before the replies.
+     */
+    Task newTask(@Nullable String key, Priority priority, Consumer<List<MediaItem>> onComputed) {
+        Task task = new Task(key, priority, onComputed);
+        mTasks.add(task);
+        if (key != null) {
+            mTasksByKey.put(key, task);
+        }
+        return task;
+    }
+
+    /**
+     * Adds a reply to the task computing the items for the key, returns false if there is no
+     * such task.
+     */
+    boolean join(String key, String parentId, @Nullable RemoteUserInfo client,
+            Consumer<List<MediaItem>> consumer, Runnable onDropped) {
+        Task task = mTasksByKey.get(key);
+        if (task == null) return false;
+        mCoalescedCount++;
+        task.addReply(parentId, client, consumer, onDropped);
+        return true;
+    }
+
+    /** Drops the replies for the children of the parent, for the client or for all if null. */
+    void drop(String parentId, @Nullable RemoteUserInfo client) {
+        drop(reply -> parentId.equals(reply.mParentId)
+                && (client == null || Objects.equals(client, reply.mClient)));
+    }
+
+    /**
+     * Drops all the replies. The browse results are never sent, the search replies answer their
+     * client with an empty list (see {@link TmaSearchSession#cancel}).
+     */
+    void dropAll() {
+        drop(reply -> true);
+    }
+
+    private void drop(Predicate<Reply> predicate) {
+        for (Iterator<Task> tasks = mTasks.iterator(); tasks.hasNext(); ) {
+            Task task = tasks.next();
+            for (Iterator<Reply> replies = task.mReplies.iterator(); replies.hasNext(); ) {
+                Reply reply = replies.next();
+                if (predicate.test(reply)) {
+                    replies.remove();
+                    mDroppedCount++;
+                    reply.mOnDropped.run();
+                }
+            }
+            if (task.mReplies.isEmpty()) {
+                tasks.remove();
+                cancel(task);
+            }
+        }
+    }
+
+    private void cancel(Task task) {
+        task.mCancelled = true;
+        if (task.mKey != null) {
+            mTasksByKey.remove(task.mKey, task);
+        }
+        if (task.mDelayedRunnable != null) {
+            mScheduler.remove(task.mDelayedRunnable);
+        }
+        if (task.mFuture != null) {
+            task.mFuture.cancel(false);
+        }
+        mCancelledTaskCount++;
+    }
+
+    void dump(PrintWriter writer, String prefix) {
+        int replyCount = 0;
+        for (Task task : mTasks) {
+            replyCount += task.mReplies.size();
+        }
+        long doneCount = mDeliveredCount + mDroppedCount + mFailedCount;
+        writer.println(prefix + "pending tasks: " + mTasks.size() + " replies: " + replyCount);
+        writer.println(prefix + "delivered: " + mDeliveredCount
+                + TmaReplyCache.getPercent(mDeliveredCount, doneCount) + " dropped: "
+                + mDroppedCount + TmaReplyCache.getPercent(mDroppedCount, doneCount)
+                + " failed: " + mFailedCount + " cancelled tasks: " + mCancelledTaskCount);
+        writer.println(prefix + "coalesced: " + mCoalescedCount
+                + TmaReplyCache.getPercent(mCoalescedCount, doneCount + replyCount));
+    }
+}
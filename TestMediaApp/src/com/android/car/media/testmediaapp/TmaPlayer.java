@@ -18,9 +18,13 @@ package com.android.car.media.testmediaapp;
 
 import static android.media.AudioManager.AUDIOFOCUS_GAIN;
 import static android.media.AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_ALBUM;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_ARTIST;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_TITLE;
 import static android.support.v4.media.session.PlaybackStateCompat.ACTION_PAUSE;
 import static android.support.v4.media.session.PlaybackStateCompat.ACTION_PLAY;
 import static android.support.v4.media.session.PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID;
+import static android.support.v4.media.session.PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH;
 import static android.support.v4.media.session.PlaybackStateCompat.ACTION_SEEK_TO;
 import static android.support.v4.media.session.PlaybackStateCompat.ACTION_SKIP_TO_NEXT;
 import static android.support.v4.media.session.PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS;
@@ -31,26 +35,35 @@ import static android.support.v4.media.session.PlaybackStateCompat.STATE_ERROR;
 import static com.android.car.media.common.MediaConstants.ERROR_RESOLUTION_ACTION_INTENT;
 import static com.android.car.media.common.MediaConstants.ERROR_RESOLUTION_ACTION_LABEL;
 
-import androidx.annotation.Nullable;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.media.AudioFocusRequest;
 import android.media.AudioManager;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.MediaStore;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
+import androidx.annotation.Nullable;
+
 import com.android.car.media.testmediaapp.TmaMediaEvent.EventState;
 import com.android.car.media.testmediaapp.TmaMediaEvent.ResolutionIntent;
+import com.android.car.media.testmediaapp.TmaMediaEvent.StateErrorCode;
 import com.android.car.media.testmediaapp.TmaMediaItem.TmaCustomAction;
+import com.android.car.media.testmediaapp.TmaScheduler.Priority;
 import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaAccountType;
 import com.android.car.media.testmediaapp.prefs.TmaPrefs;
 import com.android.car.media.testmediaapp.prefs.TmaPrefsActivity;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * This class simulates all media interactions (no sound is actually played).
@@ -58,12 +71,14 @@ import com.android.car.media.testmediaapp.prefs.TmaPrefsActivity;
 public class TmaPlayer extends MediaSessionCompat.Callback {
 
     private static final String TAG = "TmaPlayer";
+    /** How many search results are checked against the extras of a play from search. */
+    private static final int MAX_PLAY_FROM_SEARCH_CANDIDATES = 50;
 
     private final Context mContext;
     private final TmaPrefs mPrefs;
     private final TmaLibrary mLibrary;
     private final AudioManager mAudioManager;
-    private final Handler mHandler;
+    private final TmaScheduler mScheduler;
     private final Runnable mTrackTimer = this::onStop;
     private final Runnable mEventTrigger = this::onProcessMediaEvent;
     private final MediaSessionCompat mSession;
@@ -76,16 +91,31 @@ public class TmaPlayer extends MediaSessionCompat.Callback {
     private boolean mIsPlaying;
     @Nullable
     private TmaMediaItem mActiveItem;
+    /** The node whose playable children are the queue, see {@link TmaLibrary#getQueue}. */
+    @Nullable
+    private TmaMediaItem mQueue;
+    /** The index of {@link #mActiveItem} in {@link #mQueue}. */
+    private int mQueueIndex;
     private int mNextEventIndex = -1;
 
+    /** Incremented by each play request, a pending play from search is dropped when stale. */
+    private long mPlayRequestId;
+    /** The item of the pending play from search request, and when it was requested. */
+    @Nullable
+    private TmaMediaItem mPlayFromSearchItem;
+    private long mPlayFromSearchStartNanos;
+    private long mPlayFromSearchCount;
+    private long mPlayFromSearchTotalNanos;
+    private long mPlayFromSearchMaxNanos;
 
-    TmaPlayer(Context context, TmaLibrary library, AudioManager audioManager, Handler handler,
-            MediaSessionCompat session) {
+
+    TmaPlayer(Context context, TmaLibrary library, AudioManager audioManager,
+            TmaScheduler scheduler, MediaSessionCompat session) {
         mContext = context;
         mPrefs = TmaPrefs.getInstance(mContext);
         mLibrary = library;
         mAudioManager = audioManager;
-        mHandler = handler;
+        mScheduler = scheduler;
         mSession = session;
 
         // TODO add focus listener ?
@@ -123,49 +153,170 @@ public class TmaPlayer extends MediaSessionCompat.Callback {
                 String name = mContext.getResources().getString(action.mNameId);
                 state.addCustomAction(action.mId, name, action.mIcon);
             }
-            state.setActiveQueueItemId(mActiveItem.getQueueId());
+            state.setActiveQueueItemId(mQueueIndex);
         }
     }
 
     private void playItem(@Nullable TmaMediaItem item) {
-        if (item != null && item.getParent() != null) {
+        if (item != null) {
+            playItem(item, mLibrary.getQueue(item));
+        }
+    }
+
+    /** Plays the item, which must be one of the playable children of the queue. */
+    private void playItem(@Nullable TmaMediaItem item, @Nullable TmaMediaItem queue) {
+        int queueIndex = (item != null && queue != null) ? queue.getPlayableIndex(item) : -1;
+        if (queueIndex >= 0) {
             if (mIsPlaying) {
                 stopPlayback();
             }
             mActiveItem = item;
-            mSession.setQueue(item.getParent().buildQueue());
+            mQueue = queue;
+            mQueueIndex = queueIndex;
+            mLibrary.setActiveItem(item, queue);
+            mSession.setQueue(queue.buildQueue());
             startPlayBack(true);
         }
     }
 
+    /** Returns the item at the given offset from the active item in the queue, or null. */
+    @Nullable
+    private TmaMediaItem getQueueItem(int offset) {
+        if (mActiveItem == null || mQueue == null) return null;
+        int index = mQueueIndex + offset;
+        return (index >= 0 && index < mQueue.getPlayableCount())
+                ? mQueue.getPlayableByIndex(index) : null;
+    }
+
     @Override
     public void onPlayFromMediaId(String mediaId, Bundle extras) {
         super.onPlayFromMediaId(mediaId, extras);
+        mPlayRequestId++;
+        mPlayFromSearchItem = null;
         playItem(mLibrary.getMediaItemById(mediaId));
     }
 
+    /**
+     * Looks the item up with the {@link Priority#SEARCH} work of the workers, since the first
+     * search indexes all the loaded files, then plays it unless a newer play request arrived.
+     */
+    @Override
+    public void onPlayFromSearch(String query, Bundle extras) {
+        super.onPlayFromSearch(query, extras);
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        long requestId = ++mPlayRequestId;
+        mPlayFromSearchItem = null;
+        mScheduler.submit(Priority.SEARCH, () -> {
+            TmaMediaItem item = findPlayFromSearchItem(query, extras);
+            mScheduler.postFromAnyThread(Priority.SEARCH,
+                    () -> onPlayFromSearchItem(requestId, query, item, startNanos));
+        });
+    }
+
+    private void onPlayFromSearchItem(long requestId, String query, @Nullable TmaMediaItem item,
+            long startNanos) {
+        Log.i(TAG, "onPlayFromSearch: " + query + " resolved to: "
+                + ((item != null) ? item.getMediaId() : null) + " in "
+                + (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000 + "us");
+        if (requestId != mPlayRequestId) return;
+        if (item == null) {
+            setPlaybackState(new TmaMediaEvent(EventState.ERROR, StateErrorCode.UNKNOWN_ERROR,
+                    "No match for: " + query, null, ResolutionIntent.NONE, 0, null));
+            return;
+        }
+        mPlayFromSearchItem = item;
+        mPlayFromSearchStartNanos = startNanos;
+        playItem(item);
+    }
+
+    /**
+     * Returns the best playable match for a play from search request. When the extras give the
+     * focus of the request (see {@link MediaStore#EXTRA_MEDIA_FOCUS}), the matching extras are
+     * searched instead of the query, and each of them must be found in its own field. An empty
+     * request plays the first playable item of the root. Can be called from any thread.
+     */
+    @Nullable
+    private TmaMediaItem findPlayFromSearchItem(@Nullable String query, @Nullable Bundle extras) {
+        String focus = (extras != null) ? extras.getString(MediaStore.EXTRA_MEDIA_FOCUS) : null;
+        String artist = (extras != null) ? extras.getString(MediaStore.EXTRA_MEDIA_ARTIST) : null;
+        String album = (extras != null) ? extras.getString(MediaStore.EXTRA_MEDIA_ALBUM) : null;
+        String title = (extras != null) ? extras.getString(MediaStore.EXTRA_MEDIA_TITLE) : null;
+
+        // Pairs of metadata key and expected value.
+        List<String[]> fields = new ArrayList<>(3);
+        if (MediaStore.Audio.Media.ENTRY_CONTENT_TYPE.equals(focus) && title != null) {
+            fields.add(new String[] { METADATA_KEY_TITLE, title });
+        }
+        if ((MediaStore.Audio.Media.ENTRY_CONTENT_TYPE.equals(focus)
+                || MediaStore.Audio.Albums.ENTRY_CONTENT_TYPE.equals(focus)) && album != null) {
+            fields.add(new String[] { METADATA_KEY_ALBUM, album });
+        }
+        if (focus != null && artist != null) {
+            fields.add(new String[] { METADATA_KEY_ARTIST, artist });
+        }
+
+        String searchText = query;
+        if (!fields.isEmpty()) {
+            StringBuilder builder = new StringBuilder();
+            for (String[] field : fields) {
+                builder.append(field[1]).append(' ');
+            }
+            searchText = builder.toString();
+        }
+        if (TextUtils.isEmpty(searchText)) {
+            TmaMediaItem root = mLibrary.getRoot(mPrefs.mRootNodeType.getValue());
+            return (root != null) ? root.getFirstPlayableChild() : null;
+        }
+
+        for (TmaMediaItem candidate : mLibrary.search(searchText,
+                MAX_PLAY_FROM_SEARCH_CANDIDATES)) {
+            if (!matchesFields(candidate, fields)) continue;
+            if (candidate.isPlayable()) return candidate;
+
+            // Playing an album or an artist starts with its first playable child.
+            TmaMediaItem node = mLibrary.getMediaItemById(candidate.getMediaId());
+            TmaMediaItem child = (node != null) ? node.getFirstPlayableChild() : null;
+            if (child != null) return child;
+        }
+        return null;
+    }
+
+    private static boolean matchesFields(TmaMediaItem item, List<String[]> fields) {
+        for (String[] field : fields) {
+            List<String> words = TmaSearchIndex.tokenize(item.getMetadataText(field[0]));
+            if (!words.containsAll(TmaSearchIndex.tokenize(field[1]))) return false;
+        }
+        return true;
+    }
+
+    /** Prints the latencies of the play from search requests. */
+    void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "play from search to playing: " + mPlayFromSearchCount);
+        if (mPlayFromSearchCount > 0) {
+            writer.println(prefix + "average: "
+                    + mPlayFromSearchTotalNanos / mPlayFromSearchCount / 1000000 + "ms max: "
+                    + mPlayFromSearchMaxNanos / 1000000 + "ms");
+        }
+    }
+
     @Override
     public void onSkipToQueueItem(long id) {
         super.onSkipToQueueItem(id);
-        if (mActiveItem != null && mActiveItem.getParent() != null) {
-            playItem(mActiveItem.getParent().getPlayableByIndex(id));
+        if (mQueue != null && id >= 0 && id < mQueue.getPlayableCount()) {
+            playItem(mQueue.getPlayableByIndex(id), mQueue);
         }
     }
 
     @Override
     public void onSkipToNext() {
         super.onSkipToNext();
-        if (mActiveItem != null) {
-            playItem(mActiveItem.getNext());
-        }
+        playItem(getQueueItem(1), mQueue);
     }
 
     @Override
     public void onSkipToPrevious() {
         super.onSkipToPrevious();
-        if (mActiveItem != null) {
-            playItem(mActiveItem.getPrevious());
-        }
+        playItem(getQueueItem(-1), mQueue);
     }
 
     @Override
@@ -179,7 +330,7 @@ public class TmaPlayer extends MediaSessionCompat.Callback {
         super.onSeekTo(pos);
         boolean wasPlaying = mIsPlaying;
         if (wasPlaying) {
-            mHandler.removeCallbacks(mTrackTimer);
+            mScheduler.remove(mTrackTimer);
         }
         mCurrentPositionMs = pos;
         boolean requestAudioFocus = !wasPlaying;
@@ -204,11 +355,9 @@ public class TmaPlayer extends MediaSessionCompat.Callback {
         super.onCustomAction(action, extras);
         if (mActiveItem != null) {
             if (TmaCustomAction.HEART_PLUS_PLUS.mId.equals(action)) {
-                mActiveItem.mHearts++;
-                toast("" + mActiveItem.mHearts);
+                toast("" + mActiveItem.addHearts(1));
             } else if (TmaCustomAction.HEART_LESS_LESS.mId.equals(action)) {
-                mActiveItem.mHearts--;
-                toast("" + mActiveItem.mHearts);
+                toast("" + mActiveItem.addHearts(-1));
             }
         }
     }
@@ -240,12 +389,20 @@ public class TmaPlayer extends MediaSessionCompat.Callback {
             if (!mSession.isActive()) {
                 mSession.setActive(true);
             }
+            if (mPlayFromSearchItem == mActiveItem) {
+                long nanos = SystemClock.elapsedRealtimeNanos() - mPlayFromSearchStartNanos;
+                mPlayFromSearchItem = null;
+                mPlayFromSearchCount++;
+                mPlayFromSearchTotalNanos += nanos;
+                mPlayFromSearchMaxNanos = Math.max(mPlayFromSearchMaxNanos, nanos);
+                Log.i(TAG, "Play from search to playing: " + nanos / 1000000 + "ms");
+            }
 
             long trackDurationMs = mActiveItem.getDuration();
             if (trackDurationMs > 0) {
                 mPlaybackStartTimeMs = System.currentTimeMillis();
                 long remainingMs = (long) ((trackDurationMs - mCurrentPositionMs) / mPlaybackSpeed);
-                mHandler.postDelayed(mTrackTimer, remainingMs);
+                mScheduler.postDelayed(Priority.PLAYBACK, mTrackTimer, remainingMs);
             }
             mIsPlaying = true;
         } else if (mIsPlaying) {
@@ -254,7 +411,7 @@ public class TmaPlayer extends MediaSessionCompat.Callback {
 
         mNextEventIndex++;
         if (mNextEventIndex < mActiveItem.mMediaEvents.size()) {
-            mHandler.postDelayed(mEventTrigger,
+            mScheduler.postDelayed(Priority.PLAYBACK, mEventTrigger,
                     mActiveItem.mMediaEvents.get(mNextEventIndex).mPostDelayMs);
         }
     }
@@ -273,14 +430,15 @@ public class TmaPlayer extends MediaSessionCompat.Callback {
 
         mActiveItem.updateSessionMetadata(mSession);
 
-        mHandler.removeCallbacks(mEventTrigger);
+        mScheduler.remove(mEventTrigger);
         mNextEventIndex = 0;
-        mHandler.postDelayed(mEventTrigger, mActiveItem.mMediaEvents.get(0).mPostDelayMs);
+        mScheduler.postDelayed(Priority.PLAYBACK, mEventTrigger,
+                mActiveItem.mMediaEvents.get(0).mPostDelayMs);
     }
 
     private void pausePlayback() {
         mCurrentPositionMs += (System.currentTimeMillis() - mPlaybackStartTimeMs) / mPlaybackSpeed;
-        mHandler.removeCallbacks(mTrackTimer);
+        mScheduler.remove(mTrackTimer);
         PlaybackStateCompat.Builder state = new PlaybackStateCompat.Builder()
                 .setState(PlaybackStateCompat.STATE_PAUSED, mCurrentPositionMs, mPlaybackSpeed)
                 .setActions(addActions(ACTION_PLAY));
@@ -292,7 +450,7 @@ public class TmaPlayer extends MediaSessionCompat.Callback {
     /** Doesn't change the playback state. */
     private void stopPlayback() {
         mCurrentPositionMs = 0;
-        mHandler.removeCallbacks(mTrackTimer);
+        mScheduler.remove(mTrackTimer);
         mIsPlaying = false;
     }
 
@@ -305,13 +463,14 @@ public class TmaPlayer extends MediaSessionCompat.Callback {
     }
 
     private long addActions(long actions) {
-        actions |= ACTION_PLAY_FROM_MEDIA_ID | ACTION_SKIP_TO_QUEUE_ITEM | ACTION_SEEK_TO;
+        actions |= ACTION_PLAY_FROM_MEDIA_ID | ACTION_PLAY_FROM_SEARCH | ACTION_SKIP_TO_QUEUE_ITEM
+                | ACTION_SEEK_TO;
 
         if (mActiveItem != null) {
-            if (mActiveItem.getNext() != null) {
+            if (getQueueItem(1) != null) {
                 actions |= ACTION_SKIP_TO_NEXT;
             }
-            if (mActiveItem.getPrevious() != null) {
+            if (getQueueItem(-1) != null) {
                 actions |= ACTION_SKIP_TO_PREVIOUS;
             }
         }
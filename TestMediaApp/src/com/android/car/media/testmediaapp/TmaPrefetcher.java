@@ -0,0 +1,237 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.media.testmediaapp.TmaScheduler.Priority;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaPrefetchBudget;
+import com.android.car.media.testmediaapp.prefs.TmaPrefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Prepares the nodes the user is likely to browse after a reply of {@link TmaBrowser}, as
+ * {@link Priority#BACKGROUND} work of the {@link TmaScheduler}: the first browsable items of the
+ * reply get their include expanded (loading the included file), their children converted to
+ * {@link MediaItem}s and the art of those children read from the assets, within the
+ * {@link TmaPrefs#mPrefetchBudget}. Each client has its own prefetch, which stops as soon as that
+ * client browses another node. The load times of the nodes are recorded separately for the nodes
+ * that were prefetched and for the others. Thread safe.
+ */
+class TmaPrefetcher {
+
+    private static final String TAG = "TmaPrefetcher";
+
+    private final Context mContext;
+    private final TmaLibrary mLibrary;
+    private final TmaPrefs mPrefs;
+    private final TmaScheduler mScheduler;
+
+    /** The prefetch of a client. */
+    private static class ClientPrefetch {
+        /** Incremented for each prefetch, a running prefetch stops when it isn't current. */
+        volatile long mGeneration;
+
+        /** Guarded by the prefetcher. */
+        @Nullable
+        Future<?> mPending;
+        @Nullable
+        String mParentId;
+        Set<String> mPrefetchedIds = new HashSet<>();
+    }
+
+    /** Keyed by client package name. Guarded by this. */
+    private final Map<String, ClientPrefetch> mClients = new HashMap<>();
+    private long mPrefetchCount;
+    private long mCancelCount;
+    private long mPrefetchedNodeCount;
+    private long mArtBytes;
+    private long mHitCount;
+    private long mHitNanos;
+    private long mMissCount;
+    private long mMissNanos;
+
+    TmaPrefetcher(Context context, TmaLibrary library, TmaPrefs prefs, TmaScheduler scheduler) {
+        mContext = context;
+        mLibrary = library;
+        mPrefs = prefs;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Prefetches the first browsable items of the reply computed for the client's request for
+     * the given parent, replacing the previous prefetch of the client.
+     */
+    synchronized void prefetch(String clientPackage, String parentId,
+            @Nullable List<MediaItem> reply) {
+        cancel(clientPackage);
+        TmaPrefetchBudget budget = mPrefs.mPrefetchBudget.getValue();
+        if (reply == null || budget.mNodeCount <= 0) return;
+
+        List<String> mediaIds = new ArrayList<>(budget.mNodeCount);
+        for (MediaItem item : reply) {
+            if (mediaIds.size() >= budget.mNodeCount) break;
+            if (item.isBrowsable() && item.getMediaId() != null) {
+                mediaIds.add(item.getMediaId());
+            }
+        }
+        if (mediaIds.isEmpty()) return;
+
+        ClientPrefetch state = mClients.computeIfAbsent(clientPackage,
+                key -> new ClientPrefetch());
+        long generation = state.mGeneration;
+        state.mParentId = parentId;
+        state.mPrefetchedIds = new HashSet<>();
+        mPrefetchCount++;
+        state.mPending = mScheduler.submit(Priority.BACKGROUND,
+                () -> run(state, generation, mediaIds, 0, budget.mArtByteBudget));
+        Log.d(TAG, "Prefetching " + mediaIds.size() + " children of: " + parentId + " for: "
+                + clientPackage);
+    }
+
+    /** Stops the prefetch of the client, called when the client browses another node. */
+    synchronized void cancel(String clientPackage) {
+        ClientPrefetch prefetch = mClients.get(clientPackage);
+        if (prefetch != null) {
+            cancel(prefetch);
+        }
+    }
+
+    /**
+     * Stops the prefetch of the client for the children of the given parent, if it is the
+     * current one.
+     */
+    synchronized void cancel(String clientPackage, String parentId) {
+        ClientPrefetch prefetch = mClients.get(clientPackage);
+        if (prefetch != null && parentId.equals(prefetch.mParentId)) {
+            cancel(prefetch);
+        }
+    }
+
+    /** Records how long it took to load the children of the given node. */
+    synchronized void onNodeLoaded(String mediaId, long nanos) {
+        boolean prefetched = false;
+        for (ClientPrefetch prefetch : mClients.values()) {
+            prefetched |= prefetch.mPrefetchedIds.contains(mediaId);
+        }
+        if (prefetched) {
+            mHitCount++;
+            mHitNanos += nanos;
+        } else {
+            mMissCount++;
+            mMissNanos += nanos;
+        }
+    }
+
+    /** Stops the prefetches of all the clients. */
+    synchronized void release() {
+        for (ClientPrefetch prefetch : mClients.values()) {
+            cancel(prefetch);
+        }
+    }
+
+    private void cancel(ClientPrefetch prefetch) {
+        prefetch.mGeneration++;
+        if (prefetch.mPending != null && !prefetch.mPending.isDone()) {
+            prefetch.mPending.cancel(false);
+            mCancelCount++;
+        }
+        prefetch.mPending = null;
+    }
+
+    synchronized void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "prefetches: " + mPrefetchCount + " cancelled: " + mCancelCount
+                + " nodes: " + mPrefetchedNodeCount + " art: " + mArtBytes / 1024 + "KB");
+        writer.println(prefix + "prefetched node loads: " + mHitCount + " average: "
+                + ((mHitCount > 0) ? mHitNanos / mHitCount / 1000 : 0) + "us");
+        writer.println(prefix + "other node loads: " + mMissCount + " average: "
+                + ((mMissCount > 0) ? mMissNanos / mMissCount / 1000 : 0) + "us");
+    }
+
+    /**
+     * Prefetches the node at the index, then submits the next one, so that the more urgent work
+     * of the scheduler can run in between.
+     */
+    private void run(ClientPrefetch state, long generation, List<String> mediaIds, int index,
+            long artByteBudget) {
+        if (generation != state.mGeneration) return;
+        String mediaId = mediaIds.get(index);
+        long artBytes = 0;
+        // Loads the included file, like browsing the node would.
+        TmaMediaItem node = mLibrary.getMediaItemById(mediaId);
+        if (node != null) {
+            for (TmaMediaItem child : node.getChildren()) {
+                if (generation != state.mGeneration) return;
+                MediaItem item = child.toMediaItem();
+                if (artBytes < artByteBudget) {
+                    artBytes += readArt(item.getDescription(), artByteBudget - artBytes);
+                }
+            }
+        }
+        synchronized (this) {
+            if (generation != state.mGeneration) return;
+            if (node != null) {
+                state.mPrefetchedIds.add(mediaId);
+                mPrefetchedNodeCount++;
+                mArtBytes += artBytes;
+            }
+            if (index + 1 < mediaIds.size() && !mScheduler.isShutdown()) {
+                long artBytesLeft = artByteBudget - artBytes;
+                state.mPending = mScheduler.submit(Priority.BACKGROUND,
+                        () -> run(state, generation, mediaIds, index + 1, artBytesLeft));
+            }
+        }
+    }
+
+    /**
+     * Reads at most maxBytes of the art served by {@link TmaAssetProvider}, so that it is in
+     * the page cache when the client requests it. Returns the number of bytes read.
+     */
+    private long readArt(MediaDescriptionCompat description, long maxBytes) {
+        Uri uri = description.getIconUri();
+        String assetPath = (uri != null) ? TmaAssetProvider.getAssetPath(uri.toString()) : null;
+        if (assetPath == null) return 0;
+
+        long result = 0;
+        byte[] buffer = new byte[8192];
+        try (InputStream stream = mContext.getAssets().open(assetPath)) {
+            int count;
+            while (result < maxBytes && (count = stream.read(buffer)) > 0) {
+                result += count;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read: " + assetPath + " e: " + e);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp;
+
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+
+import androidx.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the replies of {@link TmaBrowser#onLoadChildren} for {@link #TTL_MS}, until the nodes
+ * are invalidated, so that the clients (media center, launcher widget, cluster...) subscribed to
+ * the same nodes share them. The keys must include everything the reply depends on (parent id,
+ * options, prefs). Identical requests made while a reply is computed are coalesced by
+ * {@link TmaPendingReplies}. Must be used on the main thread.
+ */
+class TmaReplyCache {
+
+    private static final long TTL_MS = 5000;
+    private static final int MAX_REPLIES = 32;
+
+    private static class Reply {
+        @Nullable
+        final List<MediaItem> mItems;
+        final long mTimeMs;
+
+        Reply(@Nullable List<MediaItem> items, long timeMs) {
+            mItems = items;
+            mTimeMs = timeMs;
+        }
+    }
+
+    /** Least recently used first. */
+    private final Map<String, Reply> mReplies =
+            new LinkedHashMap<String, Reply>(MAX_REPLIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Reply> eldest) {
+                    return size() > MAX_REPLIES;
+                }
+            };
+    /** Incremented by invalidations, the replies computed before aren't kept. */
+    private long mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mExpiredCount;
+    private long mInvalidationCount;
+
+    /** Passes the cached reply for the key to the consumer, returns false if there is none. */
+    boolean reply(String key, Consumer<List<MediaItem>> consumer) {
+        Reply reply = mReplies.get(key);
+        if (reply != null && SystemClock.elapsedRealtime() - reply.mTimeMs > TTL_MS) {
+            mReplies.remove(key);
+            mExpiredCount++;
+            reply = null;
+        }
+        if (reply == null) {
+            mMissCount++;
+            return false;
+        }
+        mHitCount++;
+        consumer.accept(reply.mItems);
+        return true;
+    }
+
+    /** Returns the generation to pass to {@link #put} when the reply is computed. */
+    long getGeneration() {
+        return mGeneration;
+    }
+
+    /** Keeps the reply, unless the cache was invalidated since its computation started. */
+    void put(String key, long generation, @Nullable List<MediaItem> items) {
+        if (generation == mGeneration) {
+            mReplies.put(key, new Reply(items, SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /** Drops all the replies, including the ones being computed. */
+    void invalidate() {
+        mGeneration++;
+        mInvalidationCount++;
+        mReplies.clear();
+    }
+
+    void dump(PrintWriter writer, String prefix) {
+        long requestCount = mHitCount + mMissCount;
+        writer.println(prefix + "requests: " + requestCount + " cache hits: " + mHitCount
+                + getPercent(mHitCount, requestCount) + " misses: " + mMissCount);
+        writer.println(prefix + "cached replies: " + mReplies.size() + " expired: "
+                + mExpiredCount + " invalidations: " + mInvalidationCount);
+    }
+
+    /** Returns the ratio of count to total as a percentage, between parentheses. */
+    static String getPercent(long count, long total) {
+        return " (" + ((total > 0) ? count * 100 / total : 0) + "%)";
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp;
+
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.os.HandlerCompat;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the work of {@link TmaBrowser} and {@link TmaPlayer} by {@link Priority}, on the thread
+ * of a {@link Handler} and on worker threads. <p/>
+ * The {@link Priority#PLAYBACK} runnables are posted directly to the handler, at their due time.
+ * The others wait in a queue per priority, drained one runnable per handler message, so that a
+ * due playback runnable is delayed by at most one runnable of a lower priority. A runnable
+ * waiting longer than {@link #MAX_WAIT_MS} runs before the higher priorities, so that they can't
+ * starve it. The workers also take the highest priority first. <p/>
+ * Must be used on the thread of the handler, except {@link #submit} and
+ * {@link #postFromAnyThread}.
+ */
+class TmaScheduler {
+
+    /** From the most urgent to the least. */
+    enum Priority {
+        /** The timeline of the playback: events and end of the tracks. */
+        PLAYBACK,
+        /** The replies of the root and subscribed nodes. */
+        BROWSE,
+        SEARCH,
+        /** The work the user isn't waiting for, like prefetching. */
+        BACKGROUND
+    }
+
+    private static final String TAG = "TmaScheduler";
+    private static final long MAX_WAIT_MS = 500;
+    private static final int WORKER_COUNT =
+            Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static class Entry {
+        final Runnable mRunnable;
+        final long mQueuedNanos;
+
+        Entry(Runnable runnable, long queuedNanos) {
+            mRunnable = runnable;
+            mQueuedNanos = queuedNanos;
+        }
+    }
+
+    /** Sorts the work of the workers by priority, then by submission order. */
+    private static class WorkerTask extends FutureTask<Void> implements Comparable<WorkerTask> {
+        final Priority mPriority;
+        final long mSequence;
+
+        WorkerTask(Priority priority, long sequence, Runnable runnable) {
+            super(runnable, null);
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            boolean background = mPriority == Priority.BACKGROUND;
+            if (background) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+            try {
+                super.run();
+            } finally {
+                if (background) {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+                }
+            }
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            super.setException(t);
+            Log.e(TAG, "Failed to run " + mPriority + " work: " + t);
+        }
+
+        @Override
+        public int compareTo(WorkerTask other) {
+            int result = mPriority.compareTo(other.mPriority);
+            return (result != 0) ? result : Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    /** How long the runnables of a priority waited past their due time. */
+    private static class Stats {
+        long mCount;
+        long mTotalWaitNanos;
+        long mMaxWaitNanos;
+
+        void add(long waitNanos) {
+            mCount++;
+            mTotalWaitNanos += waitNanos;
+            mMaxWaitNanos = Math.max(mMaxWaitNanos, waitNanos);
+        }
+    }
+
+    private final Handler mHandler;
+    private final ThreadPoolExecutor mWorkers;
+    private final AtomicLong mWorkerSequence = new AtomicLong();
+    /** Indexed by priority ordinal, the one of {@link Priority#PLAYBACK} stays empty. */
+    private final ArrayDeque<Entry>[] mQueues;
+    private final Stats[] mStats;
+    private final Runnable mDrain = this::drain;
+    private boolean mDrainPosted;
+    private long mStarvedCount;
+
+    @SuppressWarnings("unchecked")
+    TmaScheduler(Handler handler) {
+        mHandler = handler;
+        mWorkers = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>());
+        int count = Priority.values().length;
+        mQueues = new ArrayDeque[count];
+        mStats = new Stats[count];
+        for (int i = 0; i < count; i++) {
+            mQueues[i] = new ArrayDeque<>();
+            mStats[i] = new Stats();
+        }
+    }
+
+    void post(Priority priority, Runnable runnable) {
+        postDelayed(priority, runnable, 0);
+    }
+
+    /**
+     * Runs the runnable after the delay, as soon as no more urgent runnable is waiting. Does
+     * nothing once {@link #shutdown} was called.
+     */
+    void postDelayed(Priority priority, Runnable runnable, long delayMs) {
+        // Workers finishing after the shutdown must not post to the handler again.
+        if (isShutdown()) return;
+        long dueNanos = SystemClock.elapsedRealtimeNanos() + delayMs * 1000000;
+        if (priority == Priority.PLAYBACK) {
+            HandlerCompat.postDelayed(mHandler, () -> {
+                mStats[priority.ordinal()].add(SystemClock.elapsedRealtimeNanos() - dueNanos);
+                runnable.run();
+            }, runnable, delayMs);
+        } else if (delayMs <= 0) {
+            enqueue(priority, new Entry(runnable, dueNanos));
+        } else {
+            HandlerCompat.postDelayed(mHandler,
+                    () -> enqueue(priority, new Entry(runnable, dueNanos)), runnable, delayMs);
+        }
+    }
+
+    /** Like {@link #post}, but can be called from any thread. */
+    void postFromAnyThread(Priority priority, Runnable runnable) {
+        mHandler.post(() -> post(priority, runnable));
+    }
+
+    /** Removes the pending posts of the runnable. */
+    void remove(Runnable runnable) {
+        mHandler.removeCallbacksAndMessages(runnable);
+        for (ArrayDeque<Entry> queue : mQueues) {
+            queue.removeIf(entry -> entry.mRunnable == runnable);
+        }
+    }
+
+    /**
+     * Runs the runnable on a worker once the workers are done with the more urgent ones, returns
+     * the future to cancel it. Once the scheduler is shut down the runnable never runs, and the
+     * returned future is already cancelled. Can be called from any thread.
+     */
+    Future<?> submit(Priority priority, Runnable runnable) {
+        WorkerTask task = new WorkerTask(priority, mWorkerSequence.getAndIncrement(), runnable);
+        try {
+            mWorkers.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.cancel(false);
+        }
+        return task;
+    }
+
+    boolean isShutdown() {
+        return mWorkers.isShutdown();
+    }
+
+    /**
+     * Drops all the pending work, including the playback runnables and the delayed posts still
+     * waiting on the handler.
+     */
+    void shutdown() {
+        mWorkers.shutdownNow();
+        mHandler.removeCallbacksAndMessages(null);
+        mDrainPosted = false;
+        for (ArrayDeque<Entry> queue : mQueues) {
+            queue.clear();
+        }
+    }
+
+    private void enqueue(Priority priority, Entry entry) {
+        mQueues[priority.ordinal()].add(entry);
+        if (!mDrainPosted) {
+            mDrainPosted = true;
+            mHandler.post(mDrain);
+        }
+    }
+
+    /** Runs a single runnable, so that the due playback runnables can run before the next. */
+    private void drain() {
+        mDrainPosted = false;
+        long nowNanos = SystemClock.elapsedRealtimeNanos();
+        int index = pollIndex(nowNanos);
+        if (index < 0) return;
+
+        Entry entry = mQueues[index].poll();
+        mStats[index].add(nowNanos - entry.mQueuedNanos);
+        if (!isEmpty()) {
+            mDrainPosted = true;
+            mHandler.post(mDrain);
+        }
+        entry.mRunnable.run();
+    }
+
+    private boolean isEmpty() {
+        for (ArrayDeque<Entry> queue : mQueues) {
+            if (!queue.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    /** Returns the index of the queue to poll, or -1 if they're all empty. */
+    private int pollIndex(long nowNanos) {
+        int result = -1;
+        for (int i = 0; i < mQueues.length; i++) {
+            Entry head = mQueues[i].peek();
+            if (head == null) continue;
+            if (result < 0) {
+                result = i;
+            } else if (nowNanos - head.mQueuedNanos > MAX_WAIT_MS * 1000000) {
+                mStarvedCount++;
+                return i;
+            }
+        }
+        return result;
+    }
+
+    void dump(PrintWriter writer, String prefix) {
+        for (Priority priority : Priority.values()) {
+            Stats stats = mStats[priority.ordinal()];
+            writer.println(prefix + priority + ": runs: " + stats.mCount + " queued: "
+                    + mQueues[priority.ordinal()].size() + " average wait: "
+                    + ((stats.mCount > 0) ? stats.mTotalWaitNanos / stats.mCount / 1000 : 0)
+                    + "us max wait: " + stats.mMaxWaitNanos / 1000 + "us");
+        }
+        writer.println(prefix + "starved runs: " + mStarvedCount + " queued work: "
+                + mWorkers.getQueue().size());
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.media.testmediaapp.TmaScheduler.Priority;
+
+import java.io.PrintWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the jitter of a playback timeline under a heavy browse load, on a dedicated looper:
+ * a playback event is due every {@link #PLAYBACK_PERIOD_MS} while bursts of browse work, more
+ * than the looper can run, arrive from another thread (like the binder calls of the clients).
+ * The lateness of the playback events is reported when all the work is posted to the handler in
+ * FIFO order, and when it goes through a {@link TmaScheduler}.
+ */
+class TmaSchedulerBenchmark {
+
+    private static final String TAG = "TmaSchedulerBenchmark";
+    private static final long DURATION_MS = 2000;
+    private static final long PLAYBACK_PERIOD_MS = 20;
+    private static final long BURST_PERIOD_MS = 10;
+    /** Bursts of 8 runs of 2ms every 10ms need 1.6 times the time of the looper. */
+    private static final int BURST_SIZE = 8;
+    private static final long BROWSE_RUN_NANOS = 2000000;
+
+    /** Only used on the looper thread until the end of the run. */
+    private static class Timeline {
+        final long mStartNanos = SystemClock.elapsedRealtimeNanos();
+        int mEventCount;
+        long mTotalLatenessNanos;
+        long mMaxLatenessNanos;
+        int mBrowseRunCount;
+
+        long getDueNanos(int event) {
+            return mStartNanos + (event + 1) * PLAYBACK_PERIOD_MS * 1000000;
+        }
+    }
+
+    /** Runs the benchmark, which blocks the calling thread for a few seconds. */
+    static void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "FIFO handler: " + run(false));
+        writer.flush();
+        writer.println(prefix + "scheduler: " + run(true));
+        writer.flush();
+    }
+
+    private static String run(boolean scheduled) {
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        TmaScheduler scheduler = scheduled ? new TmaScheduler(handler) : null;
+        ScheduledExecutorService clients = Executors.newSingleThreadScheduledExecutor();
+        int eventCount = (int) (DURATION_MS / PLAYBACK_PERIOD_MS);
+        CountDownLatch done = new CountDownLatch(1);
+        Timeline timeline = new Timeline();
+
+        Runnable browseRun = () -> {
+            long endNanos = SystemClock.elapsedRealtimeNanos() + BROWSE_RUN_NANOS;
+            while (SystemClock.elapsedRealtimeNanos() < endNanos) {
+                // Busy, like converting a large node.
+            }
+            timeline.mBrowseRunCount++;
+        };
+        clients.scheduleAtFixedRate(() -> {
+            if (SystemClock.elapsedRealtimeNanos() - timeline.mStartNanos
+                    > DURATION_MS * 1000000) {
+                return;
+            }
+            for (int i = 0; i < BURST_SIZE; i++) {
+                if (scheduler != null) {
+                    handler.post(() -> scheduler.post(Priority.BROWSE, browseRun));
+                } else {
+                    handler.post(browseRun);
+                }
+            }
+        }, 0, BURST_PERIOD_MS, TimeUnit.MILLISECONDS);
+        handler.post(() -> postPlaybackEvent(handler, scheduler, timeline, eventCount, done));
+
+        try {
+            // The FIFO handler runs the last events after all the browse work.
+            if (!done.await(DURATION_MS * 5, TimeUnit.MILLISECONDS)) {
+                return "timed out after " + timeline.mEventCount + " events";
+            }
+        } catch (InterruptedException e) {
+            return "interrupted";
+        } finally {
+            clients.shutdownNow();
+            // Drops the browse work left.
+            thread.quit();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            return "interrupted";
+        }
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        return "playback events: " + timeline.mEventCount + " average lateness: "
+                + timeline.mTotalLatenessNanos / timeline.mEventCount / 1000 + "us max: "
+                + timeline.mMaxLatenessNanos / 1000 + "us, browse runs: "
+                + timeline.mBrowseRunCount;
+    }
+
+    /** Posts the next event of the timeline, which records its lateness and posts the next. */
+    private static void postPlaybackEvent(Handler handler, @Nullable TmaScheduler scheduler,
+            Timeline timeline, int eventCount, CountDownLatch done) {
+        long dueNanos = timeline.getDueNanos(timeline.mEventCount);
+        Runnable event = () -> {
+            long latenessNanos = SystemClock.elapsedRealtimeNanos() - dueNanos;
+            timeline.mEventCount++;
+            timeline.mTotalLatenessNanos += latenessNanos;
+            timeline.mMaxLatenessNanos = Math.max(timeline.mMaxLatenessNanos, latenessNanos);
+            if (timeline.mEventCount < eventCount) {
+                postPlaybackEvent(handler, scheduler, timeline, eventCount, done);
+            } else {
+                done.countDown();
+            }
+        };
+        long delayMs = Math.max(0,
+                (dueNanos - SystemClock.elapsedRealtimeNanos() + 999999) / 1000000);
+        if (scheduler != null) {
+            scheduler.postDelayed(Priority.PLAYBACK, event, delayMs);
+        } else {
+            handler.postDelayed(event, delayMs);
+        }
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp;
+
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_ALBUM;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_ARTIST;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_DISPLAY_SUBTITLE;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_TITLE;
+
+import androidx.annotation.Nullable;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index of the title, subtitle, artist and album of the {@link TmaMediaItem}s added to
+ * it. Words are folded to lower case and stripped of their accents. An item matches a query when
+ * it contains all the words of the query (the last one being matched as a prefix, so that results
+ * follow the user's typing), and items are ranked by the fields the words were found in. Each
+ * media id handle keeps its slot once added, so that an item removed and added again (like the
+ * items of an evicted file that is loaded again) reuses its slot rather than growing the index,
+ * and removed items are taken out of their postings. The whole index can be released with
+ * {@link #clear}, which invalidates the previous matches. Thread safe.
+ */
+class TmaSearchIndex {
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    /** Above this, re-checking the previous matches costs more than using the postings. */
+    private static final int MAX_NARROWED_MATCHES = 4096;
+    /** Rough size of a word entry of {@link #mPostings}, without its strings and arrays. */
+    private static final int ESTIMATED_WORD_BYTES = 80;
+
+    /** The indexed fields, and the score of a word found in each of them. */
+    private enum Field {
+        TITLE(METADATA_KEY_TITLE, 8),
+        ARTIST(METADATA_KEY_ARTIST, 4),
+        ALBUM(METADATA_KEY_ALBUM, 4),
+        SUBTITLE(METADATA_KEY_DISPLAY_SUBTITLE, 2);
+
+        final String mMetadataKey;
+        final int mWeight;
+
+        Field(String metadataKey, int weight) {
+            mMetadataKey = metadataKey;
+            mWeight = weight;
+        }
+    }
+
+    /** The items containing a word, by increasing item index, with the word's score in each. */
+    static final class Postings {
+        int[] mItems;
+        int[] mScores;
+        int mSize;
+
+        Postings() {
+            this(2);
+        }
+
+        Postings(int capacity) {
+            mItems = new int[Math.max(capacity, 1)];
+            mScores = new int[mItems.length];
+        }
+
+        /** Adds an item with a greater index than the others, or adds to the last one's score. */
+        void add(int item, int score) {
+            if (mSize > 0 && mItems[mSize - 1] == item) {
+                mScores[mSize - 1] += score;
+                return;
+            }
+            insertAt(mSize, item, score);
+        }
+
+        /** Adds an item at its position, or adds to its score if it is already there. */
+        void insert(int item, int score) {
+            int position = Arrays.binarySearch(mItems, 0, mSize, item);
+            if (position >= 0) {
+                mScores[position] += score;
+            } else {
+                insertAt(-position - 1, item, score);
+            }
+        }
+
+        void remove(int item) {
+            int position = Arrays.binarySearch(mItems, 0, mSize, item);
+            if (position < 0) return;
+            System.arraycopy(mItems, position + 1, mItems, position, mSize - position - 1);
+            System.arraycopy(mScores, position + 1, mScores, position, mSize - position - 1);
+            mSize--;
+        }
+
+        private void insertAt(int position, int item, int score) {
+            if (mSize == mItems.length) {
+                mItems = Arrays.copyOf(mItems, mSize * 2);
+                mScores = Arrays.copyOf(mScores, mSize * 2);
+            }
+            System.arraycopy(mItems, position, mItems, position + 1, mSize - position);
+            System.arraycopy(mScores, position, mScores, position + 1, mSize - position);
+            mItems[position] = item;
+            mScores[position] = score;
+            mSize++;
+        }
+    }
+
+    /** All the items of a query, see {@link #match}. */
+    static final class Matches {
+        final String mQuery;
+        /** The words of the query, see {@link #tokenize}. */
+        final List<String> mWords;
+        /** How many items the index had, the items added later aren't part of the matches. */
+        final int mItemCount;
+        final Postings mPostings;
+        /** Whether the matches were narrowed from the matches of a shorter query. */
+        final boolean mNarrowed;
+        /** The {@link #mGeneration} of the index, matches of a cleared index are stale. */
+        final int mGeneration;
+        /** The {@link #mReusedSlotCount} of the index, see {@link #canNarrow}. */
+        final int mReusedSlotCount;
+
+        Matches(String query, List<String> words, int itemCount, Postings postings,
+                boolean narrowed, int generation, int reusedSlotCount) {
+            mQuery = query;
+            mWords = words;
+            mItemCount = itemCount;
+            mPostings = postings;
+            mNarrowed = narrowed;
+            mGeneration = generation;
+            mReusedSlotCount = reusedSlotCount;
+        }
+
+        int size() {
+            return mPostings.mSize;
+        }
+    }
+
+    /** The items by slot, null for the slots of the removed items. */
+    private final List<TmaMediaItem> mItems = new ArrayList<>();
+    /** The media id handles of the added items. */
+    private final BitSet mHandles = new BitSet();
+    /** The slot in {@link #mItems} of each handle added since the last clear, or -1. */
+    private int[] mIndexesByHandle = newIndexes(64);
+    /** Sorted so that the words starting with a prefix are contiguous. */
+    private final TreeMap<String, Postings> mPostings = new TreeMap<>();
+    /** Incremented by {@link #clear}. */
+    private int mGeneration;
+    /** Incremented when an item is added to the slot of a removed item. */
+    private int mReusedSlotCount;
+
+    /**
+     * Adds the item unless an item with the same media id was already added. The handle is the
+     * one given to the media id by {@link TmaMediaItemTable}.
+     */
+    synchronized void add(TmaMediaItem item, int handle) {
+        if (mHandles.get(handle)) return;
+        mHandles.set(handle);
+
+        if (handle >= mIndexesByHandle.length) {
+            int length = mIndexesByHandle.length;
+            mIndexesByHandle = Arrays.copyOf(mIndexesByHandle, Math.max(handle + 1, length * 2));
+            Arrays.fill(mIndexesByHandle, length, mIndexesByHandle.length, -1);
+        }
+        int index = mIndexesByHandle[handle];
+        boolean reused = index >= 0;
+        if (reused) {
+            mItems.set(index, item);
+            mReusedSlotCount++;
+        } else {
+            index = mItems.size();
+            mItems.add(item);
+            mIndexesByHandle[handle] = index;
+        }
+        for (Field field : Field.values()) {
+            for (String word : tokenize(item.getMetadataText(field.mMetadataKey))) {
+                Postings postings = mPostings.get(word);
+                if (postings == null) {
+                    postings = new Postings();
+                    mPostings.put(word, postings);
+                }
+                if (reused) {
+                    postings.insert(index, field.mWeight);
+                } else {
+                    postings.add(index, field.mWeight);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the item added with the given handle, if any, from the postings of its words. Its
+     * slot is kept for the next item added with the same handle.
+     */
+    synchronized void remove(int handle) {
+        if (!mHandles.get(handle)) return;
+        mHandles.clear(handle);
+        int index = mIndexesByHandle[handle];
+        TmaMediaItem item = mItems.set(index, null);
+        for (Field field : Field.values()) {
+            for (String word : tokenize(item.getMetadataText(field.mMetadataKey))) {
+                Postings postings = mPostings.get(word);
+                if (postings == null) continue;
+                postings.remove(index);
+                if (postings.mSize == 0) {
+                    mPostings.remove(word);
+                }
+            }
+        }
+    }
+
+    synchronized int size() {
+        return mItems.size();
+    }
+
+    /** Removes all the items, returns the estimated number of bytes released. */
+    synchronized long clear() {
+        long bytes = 4L * (mItems.size() + mIndexesByHandle.length);
+        for (Map.Entry<String, Postings> entry : mPostings.entrySet()) {
+            bytes += ESTIMATED_WORD_BYTES + 2L * entry.getKey().length()
+                    + 8L * entry.getValue().mItems.length;
+        }
+        mItems.clear();
+        mHandles.clear();
+        mIndexesByHandle = newIndexes(64);
+        mPostings.clear();
+        mGeneration++;
+        return bytes;
+    }
+
+    /**
+     * Returns all the items matching the query. When the query extends the query of the given
+     * previous matches, only those matches (and the items added since) are checked.
+     */
+    synchronized Matches match(String query, @Nullable Matches previous) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return new Matches(query, words, mItems.size(), new Postings(), false,
+                    mGeneration, mReusedSlotCount);
+        }
+
+        if (canNarrow(previous, words)) {
+            return new Matches(query, words, mItems.size(), narrow(previous, words), true,
+                    mGeneration, mReusedSlotCount);
+        }
+
+        Postings matches = null;
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            Postings wordMatches = (i == words.size() - 1) ? getPrefixMatches(word)
+                    : mPostings.get(word);
+            if (wordMatches == null || wordMatches.mSize == 0) {
+                matches = new Postings();
+                break;
+            }
+            matches = (matches == null) ? wordMatches : intersect(matches, wordMatches);
+        }
+        return new Matches(query, words, mItems.size(), matches, false, mGeneration,
+                mReusedSlotCount);
+    }
+
+    /** Returns at most maxResults of the matched items, best matches first. */
+    synchronized List<TmaMediaItem> getBestItems(Matches matches, int maxResults) {
+        Postings postings = matches.mPostings;
+        if (postings.mSize == 0 || maxResults <= 0 || matches.mGeneration != mGeneration) {
+            return Collections.emptyList();
+        }
+
+        // Min heap of (score, reversed index) keeping the best matches, earlier items win ties.
+        PriorityQueue<Long> best = new PriorityQueue<>(Math.min(maxResults, postings.mSize) + 1);
+        for (int i = 0; i < postings.mSize; i++) {
+            if (mItems.get(postings.mItems[i]) == null) continue;
+            best.add(((long) postings.mScores[i] << 32)
+                    | (Integer.MAX_VALUE - postings.mItems[i]));
+            if (best.size() > maxResults) {
+                best.poll();
+            }
+        }
+        TmaMediaItem[] results = new TmaMediaItem[best.size()];
+        for (int i = results.length - 1; i >= 0; i--) {
+            results[i] = mItems.get(Integer.MAX_VALUE - (int) (long) best.poll());
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Returns whether the matches of the words are a subset of the previous matches (plus the
+     * items added since), so that only those need to be checked. That is the case when the words
+     * extend the previous words: the same whole words, then a word starting with the previous
+     * last word (matched as a prefix), then any other words. The words are compared rather than
+     * the queries since they are deduplicated: "ab c a" then "ab c ab" drops the last word. A
+     * previous query without words matched nothing, and must not be narrowed. Items added to
+     * reused slots since the previous matches aren't among the items added since, so they
+     * prevent narrowing.
+     */
+    private boolean canNarrow(@Nullable Matches previous, List<String> words) {
+        if (previous == null || previous.mGeneration != mGeneration
+                || previous.mReusedSlotCount != mReusedSlotCount
+                || previous.mPostings.mSize > MAX_NARROWED_MATCHES) {
+            return false;
+        }
+        List<String> previousWords = previous.mWords;
+        int last = previousWords.size() - 1;
+        if (last < 0 || words.size() <= last) return false;
+        for (int i = 0; i < last; i++) {
+            if (!words.get(i).equals(previousWords.get(i))) return false;
+        }
+        return words.get(last).startsWith(previousWords.get(last));
+    }
+
+    /** Re-scores the previous matches, and the items added since, against the new words. */
+    private Postings narrow(Matches previous, List<String> words) {
+        Postings result = new Postings();
+        Postings candidates = previous.mPostings;
+        for (int i = 0; i < candidates.mSize; i++) {
+            addIfMatching(result, candidates.mItems[i], words);
+        }
+        for (int item = previous.mItemCount; item < mItems.size(); item++) {
+            addIfMatching(result, item, words);
+        }
+        return result;
+    }
+
+    private void addIfMatching(Postings result, int item, List<String> words) {
+        TmaMediaItem mediaItem = mItems.get(item);
+        if (mediaItem == null) return;
+
+        // Same scores as the postings: the weights of the fields containing each word.
+        Map<String, Integer> itemWords = new HashMap<>();
+        for (Field field : Field.values()) {
+            for (String word : tokenize(mediaItem.getMetadataText(field.mMetadataKey))) {
+                itemWords.merge(word, field.mWeight, Integer::sum);
+            }
+        }
+        int score = 0;
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            int wordScore = 0;
+            if (i < words.size() - 1) {
+                Integer exact = itemWords.get(word);
+                wordScore = (exact != null) ? exact : 0;
+            } else {
+                for (Map.Entry<String, Integer> entry : itemWords.entrySet()) {
+                    if (entry.getKey().startsWith(word)) {
+                        wordScore = Math.max(wordScore, entry.getValue());
+                    }
+                }
+            }
+            if (wordScore == 0) return;
+            score += wordScore;
+        }
+        result.add(item, score);
+    }
+
+    @Nullable
+    private Postings getPrefixMatches(String prefix) {
+        NavigableMap<String, Postings> words =
+                mPostings.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        if (words.isEmpty()) return null;
+        if (words.size() == 1) {
+            // Copied since the matches must not grow with the index.
+            Postings postings = words.firstEntry().getValue();
+            Postings result = new Postings();
+            result.mItems = Arrays.copyOf(postings.mItems, postings.mSize);
+            result.mScores = Arrays.copyOf(postings.mScores, postings.mSize);
+            result.mSize = postings.mSize;
+            return result;
+        }
+        // Merged two by two, several words of the same item can share the prefix.
+        List<Postings> merged = new ArrayList<>(words.values());
+        while (merged.size() > 1) {
+            List<Postings> next = new ArrayList<>((merged.size() + 1) / 2);
+            for (int i = 0; i < merged.size(); i += 2) {
+                next.add((i + 1 < merged.size()) ? union(merged.get(i), merged.get(i + 1))
+                        : merged.get(i));
+            }
+            merged = next;
+        }
+        return merged.get(0);
+    }
+
+    private static int[] newIndexes(int count) {
+        int[] indexes = new int[count];
+        Arrays.fill(indexes, -1);
+        return indexes;
+    }
+
+    /** Returns the items of both postings, with the best of their scores. */
+    private static Postings union(Postings first, Postings second) {
+        Postings result = new Postings(first.mSize + second.mSize);
+        int i = 0;
+        int j = 0;
+        while (i < first.mSize || j < second.mSize) {
+            int item1 = (i < first.mSize) ? first.mItems[i] : Integer.MAX_VALUE;
+            int item2 = (j < second.mSize) ? second.mItems[j] : Integer.MAX_VALUE;
+            if (item1 < item2) {
+                result.add(item1, first.mScores[i++]);
+            } else if (item1 > item2) {
+                result.add(item2, second.mScores[j++]);
+            } else {
+                result.add(item1, Math.max(first.mScores[i++], second.mScores[j++]));
+            }
+        }
+        return result;
+    }
+
+    private static Postings intersect(Postings first, Postings second) {
+        Postings result = new Postings();
+        int i = 0;
+        int j = 0;
+        while (i < first.mSize && j < second.mSize) {
+            int item1 = first.mItems[i];
+            int item2 = second.mItems[j];
+            if (item1 < item2) {
+                i++;
+            } else if (item1 > item2) {
+                j++;
+            } else {
+                result.add(item1, first.mScores[i] + second.mScores[j]);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the distinct words of the text, in lower case and without accents. */
+    static List<String> tokenize(@Nullable CharSequence text) {
+        if (text == null || text.length() == 0) return Collections.emptyList();
+
+        String folded = COMBINING_MARKS.matcher(
+                Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        folded = folded.toLowerCase(Locale.ROOT);
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean inWord = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                String word = folded.substring(start, i);
+                if (!words.contains(word)) {
+                    words.add(word);
+                }
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp;
+
+import static android.support.v4.media.MediaBrowserCompat.MediaItem.FLAG_PLAYABLE;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_MEDIA_ID;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_TITLE;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that the narrowed matches of {@link TmaSearchIndex} are the matches of a full search:
+ * each query is typed one keystroke at a time, narrowing the matches of the previous keystroke,
+ * and the results are compared with those of the same query searched from scratch.
+ */
+class TmaSearchIndexCheck {
+
+    private static final String[] WORDS = { "alpha", "album", "beta", "bravo", "echo" };
+    private static final int ITEM_COUNT = 200;
+    /**
+     * Starting from an empty query, like a client clearing the search field. Typing the last one
+     * repeats a word, which drops the previous last word of the query.
+     */
+    private static final String[] TYPED_QUERIES =
+            { "a", "al", "alb", "alpha b", "be", "echo ", "alpha b alpha" };
+
+    /** Runs the check, and prints the first mismatch if any. */
+    static void dump(PrintWriter writer, String prefix) {
+        TmaSearchIndex index = new TmaSearchIndex();
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            index.add(createItem(i), i);
+        }
+        int checkCount = 0;
+        for (String typed : TYPED_QUERIES) {
+            TmaSearchIndex.Matches previous = index.match("", null);
+            for (int length = 1; length <= typed.length(); length++) {
+                String query = typed.substring(0, length);
+                TmaSearchIndex.Matches narrowed = index.match(query, previous);
+                List<TmaMediaItem> expected =
+                        index.getBestItems(index.match(query, null), ITEM_COUNT);
+                List<TmaMediaItem> actual = index.getBestItems(narrowed, ITEM_COUNT);
+                checkCount++;
+                if (!expected.equals(actual)) {
+                    writer.println(prefix + "mismatch for: \"" + query + "\" after: \""
+                            + previous.mQuery + "\" expected: " + expected.size()
+                            + " items, got: " + actual.size());
+                    return;
+                }
+                previous = narrowed;
+            }
+        }
+        writer.println(prefix + "ok, queries checked: " + checkCount);
+    }
+
+    /** Titles made of two of the words, so that every query matches some of the items. */
+    private static TmaMediaItem createItem(int index) {
+        String title = WORDS[index % WORDS.length] + " "
+                + WORDS[(index / WORDS.length) % WORDS.length] + " " + index;
+        MediaMetadataCompat metadata = new MediaMetadataCompat.Builder()
+                .putString(METADATA_KEY_MEDIA_ID, "check_" + index)
+                .putString(METADATA_KEY_TITLE, title)
+                .build();
+        return new TmaMediaItem(FLAG_PLAYABLE, TmaMediaItem.ContentStyle.NONE,
+                TmaMediaItem.ContentStyle.NONE, TmaMediaItem.Metadata.of(metadata),
+                Collections.emptyList(), Collections.emptyList(),
+                Collections.<TmaMediaItem>emptyList(), null);
+    }
+}
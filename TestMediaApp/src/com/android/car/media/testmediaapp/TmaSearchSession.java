@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp;
+
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+
+import androidx.annotation.Nullable;
+import androidx.media.MediaBrowserServiceCompat.Result;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * As-you-type search state of one client of {@link TmaBrowser}. The matches of the last query
+ * are kept so that a query extending it (the next keystroke) only re-checks those matches, and
+ * the pending reply of a query is answered with an empty list as soon as a newer query arrives.
+ * {@link #start}, {@link #finish} and {@link #cancel} must be called on the main thread,
+ * {@link #search} can be called from any thread.
+ */
+class TmaSearchSession {
+
+    /** One frame at 60 fps. */
+    private static final long FRAME_NANOS = 16_666_667;
+
+    private final TmaLibrary mLibrary;
+
+    /** Only accessed on the main thread. */
+    private long mLastSearchId;
+    @Nullable
+    private Result<List<MediaItem>> mPendingResult;
+    private long mCancelledCount;
+
+    /** The id of the newest search, searches with an older id are stale. */
+    private volatile long mCurrentSearchId;
+
+    /** Guarded by this. */
+    @Nullable
+    private TmaSearchIndex.Matches mLastMatches;
+    private long mSearchCount;
+    private long mNarrowedCount;
+    private long mUnderFrameCount;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    TmaSearchSession(TmaLibrary library) {
+        mLibrary = library;
+    }
+
+    /**
+     * Starts a new search whose reply will be sent to the given result, and cancels the
+     * previous search if its reply is still pending. Returns the id of the new search.
+     */
+    long start(Result<List<MediaItem>> result) {
+        if (mPendingResult != null) {
+            mPendingResult.sendResult(Collections.emptyList());
+            mCancelledCount++;
+        }
+        mPendingResult = result;
+        mCurrentSearchId = ++mLastSearchId;
+        return mLastSearchId;
+    }
+
+    /**
+     * Returns true if the reply of the given search must be sent, false if it was already
+     * answered because a newer search started.
+     */
+    boolean finish(long searchId) {
+        if (searchId != mLastSearchId) return false;
+        mPendingResult = null;
+        return true;
+    }
+
+    /**
+     * Answers the pending reply of the given search with an empty list if it is still the newest
+     * search, for a reply that won't be computed.
+     */
+    void cancel(long searchId) {
+        if (searchId != mLastSearchId || mPendingResult == null) return;
+        mPendingResult.sendResult(Collections.emptyList());
+        mPendingResult = null;
+        mCurrentSearchId = 0;
+        mCancelledCount++;
+    }
+
+    /** Returns the best matches of the query, or null if a newer search started. */
+    @Nullable
+    List<TmaMediaItem> search(long searchId, String query, int maxResults) {
+        if (searchId != mCurrentSearchId) return null;
+
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        TmaSearchIndex.Matches previous;
+        synchronized (this) {
+            previous = mLastMatches;
+        }
+        TmaSearchIndex.Matches matches = mLibrary.match(query, previous);
+        List<TmaMediaItem> results = mLibrary.getBestMatches(matches, maxResults);
+        long nanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+
+        synchronized (this) {
+            mLastMatches = matches;
+            mSearchCount++;
+            if (matches.mNarrowed) mNarrowedCount++;
+            if (nanos < FRAME_NANOS) mUnderFrameCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+        return results;
+    }
+
+    /** Drops the matches of the last query, the next query isn't narrowed. */
+    synchronized void releaseMatches() {
+        mLastMatches = null;
+    }
+
+    /** Prints the hit rate of the narrowing and the search latencies. */
+    synchronized void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "searches: " + mSearchCount + " narrowed: " + mNarrowedCount
+                + " cancelled: " + mCancelledCount);
+        if (mSearchCount > 0) {
+            writer.println(prefix + "narrowed ratio: " + (100 * mNarrowedCount / mSearchCount)
+                    + "% under one frame: " + (100 * mUnderFrameCount / mSearchCount) + "%");
+            writer.println(prefix + "average: " + (mTotalNanos / mSearchCount / 1000) + "us"
+                    + " max: " + (mMaxNanos / 1000) + "us");
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp.loader;
+
+import static com.android.car.media.testmediaapp.TmaMediaEvent.INSTANT_PLAYBACK;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.media.testmediaapp.TmaMediaEvent;
+import com.android.car.media.testmediaapp.TmaMediaEvent.EventState;
+import com.android.car.media.testmediaapp.TmaMediaEvent.ResolutionIntent;
+import com.android.car.media.testmediaapp.TmaMediaEvent.StateErrorCode;
+import com.android.car.media.testmediaapp.TmaMediaItem;
+import com.android.car.media.testmediaapp.TmaMediaItem.ContentStyle;
+import com.android.car.media.testmediaapp.TmaMediaItem.TmaCustomAction;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read only view of a media items file compiled by {@link TmaCatalogWriter}, usually backed by a
+ * memory mapped file. Nodes are only decoded into {@link TmaMediaItem}s when the tree reaches
+ * them, and the catalog's id table lets {@link TmaMediaItem#findDescendant} locate any item
+ * without decoding the rest of the file. Layout (big endian):
+ * <pre>
+ *   header          MAGIC, VERSION, source stamp (long), then the counts of: strings, nodes,
+ *                   metadata entries, events, custom actions and id table slots
+ *   string offsets  (strings + 1) ints, relative to the string data
+ *   nodes           NODE_INTS ints per node, breadth first so that siblings are contiguous
+ *   metadata        key (string), TYPE_LONG or TYPE_TEXT, value (long or string)
+ *   events          EVENT_INTS ints per event
+ *   custom actions  one {@link TmaCustomAction} ordinal per int
+ *   id table        node indexes (or -1) in open addressing slots for the media ids' hashes
+ *   string data     utf-8 bytes
+ * </pre>
+ */
+class TmaCatalog implements TmaMediaItem.DescendantIndex {
+
+    static final int MAGIC = 0x544d4143; // "TMAC"
+    static final int VERSION = 1;
+    static final int NO_STRING = -1;
+
+    static final int NODE_FLAGS = 0;
+    static final int NODE_PLAYABLE_STYLE = 1;
+    static final int NODE_BROWSABLE_STYLE = 2;
+    static final int NODE_MEDIA_ID = 3;
+    static final int NODE_INCLUDE = 4;
+    static final int NODE_PARENT = 5;
+    static final int NODE_INDEX_IN_PARENT = 6;
+    static final int NODE_FIRST_CHILD = 7;
+    static final int NODE_CHILD_COUNT = 8;
+    static final int NODE_METADATA_START = 9;
+    static final int NODE_METADATA_COUNT = 10;
+    static final int NODE_EVENTS_START = 11;
+    static final int NODE_EVENTS_COUNT = 12;
+    static final int NODE_ACTIONS_START = 13;
+    static final int NODE_ACTIONS_COUNT = 14;
+    static final int NODE_INTS = 15;
+
+    static final int EVENT_STATE = 0;
+    static final int EVENT_ERROR_CODE = 1;
+    static final int EVENT_ERROR_MESSAGE = 2;
+    static final int EVENT_ACTION_LABEL = 3;
+    static final int EVENT_RESOLUTION_INTENT = 4;
+    static final int EVENT_POST_DELAY_MS = 5;
+    static final int EVENT_EXCEPTION_CLASS = 6;
+    static final int EVENT_INTS = 7;
+
+    static final int TYPE_LONG = 0;
+    static final int TYPE_TEXT = 1;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int METADATA_ENTRY_SIZE = 16;
+
+    private static final ContentStyle[] CONTENT_STYLES = ContentStyle.values();
+    private static final TmaCustomAction[] CUSTOM_ACTIONS = TmaCustomAction.values();
+    private static final EventState[] EVENT_STATES = EventState.values();
+    private static final StateErrorCode[] ERROR_CODES = StateErrorCode.values();
+    private static final ResolutionIntent[] RESOLUTION_INTENTS = ResolutionIntent.values();
+
+    private final ByteBuffer mBuffer;
+    private final long mSourceStamp;
+    private final int mNodesStart;
+    private final int mMetadataStart;
+    private final int mEventsStart;
+    private final int mActionsStart;
+    private final int mIdTableStart;
+    private final int mIdTableSize;
+    private final int mStringOffsetsStart;
+    private final int mStringDataStart;
+    /** Strings are decoded the first time they are needed. */
+    private final String[] mStrings;
+
+    /** Returns true if the buffer starts with a header this class can read. */
+    static boolean isSupported(ByteBuffer buffer) {
+        return buffer.limit() >= HEADER_SIZE && buffer.getInt(0) == MAGIC
+                && buffer.getInt(4) == VERSION;
+    }
+
+    /** The buffer must be {@link #isSupported}. */
+    TmaCatalog(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mSourceStamp = buffer.getLong(8);
+        int stringCount = buffer.getInt(16);
+        int nodeCount = buffer.getInt(20);
+        int metadataCount = buffer.getInt(24);
+        int eventCount = buffer.getInt(28);
+        int actionCount = buffer.getInt(32);
+        mIdTableSize = buffer.getInt(36);
+
+        mStringOffsetsStart = HEADER_SIZE;
+        mNodesStart = mStringOffsetsStart + (stringCount + 1) * 4;
+        mMetadataStart = mNodesStart + nodeCount * NODE_INTS * 4;
+        mEventsStart = mMetadataStart + metadataCount * METADATA_ENTRY_SIZE;
+        mActionsStart = mEventsStart + eventCount * EVENT_INTS * 4;
+        mIdTableStart = mActionsStart + actionCount * 4;
+        mStringDataStart = mIdTableStart + mIdTableSize * 4;
+        mStrings = new String[stringCount];
+    }
+
+    /** The stamp of the source the catalog was compiled from, see {@link TmaCatalogWriter}. */
+    long getSourceStamp() {
+        return mSourceStamp;
+    }
+
+    /** Returns the root item of the catalog, its descendants are decoded on demand. */
+    TmaMediaItem getRoot() {
+        TmaMediaItem root = decodeItem(0);
+        root.setDescendantIndex(this);
+        return root;
+    }
+
+    @Nullable
+    @Override
+    public int[] getPath(String mediaId) {
+        int node = findNode(mediaId);
+        if (node < 0) return null;
+
+        int depth = 0;
+        for (int n = node; getNodeInt(n, NODE_PARENT) >= 0; n = getNodeInt(n, NODE_PARENT)) {
+            depth++;
+        }
+        int[] path = new int[depth];
+        for (int n = node; depth > 0; n = getNodeInt(n, NODE_PARENT)) {
+            path[--depth] = getNodeInt(n, NODE_INDEX_IN_PARENT);
+        }
+        return path;
+    }
+
+    private int findNode(String mediaId) {
+        if (mIdTableSize <= 0) return -1;
+        int slot = mediaId.hashCode() & (mIdTableSize - 1);
+        while (true) {
+            int node = mBuffer.getInt(mIdTableStart + slot * 4);
+            if (node < 0) return -1;
+            if (mediaId.equals(getString(getNodeInt(node, NODE_MEDIA_ID)))) return node;
+            slot = (slot + 1) & (mIdTableSize - 1);
+        }
+    }
+
+    private int getNodeInt(int node, int field) {
+        return mBuffer.getInt(mNodesStart + (node * NODE_INTS + field) * 4);
+    }
+
+    @Nullable
+    private String getString(int index) {
+        if (index == NO_STRING) return null;
+        String result = mStrings[index];
+        if (result == null) {
+            int start = mBuffer.getInt(mStringOffsetsStart + index * 4);
+            int end = mBuffer.getInt(mStringOffsetsStart + (index + 1) * 4);
+            byte[] bytes = new byte[end - start];
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(mStringDataStart + start);
+            buffer.get(bytes);
+            result = new String(bytes, StandardCharsets.UTF_8);
+            mStrings[index] = result;
+        }
+        return result;
+    }
+
+    private TmaMediaItem decodeItem(int node) {
+        return new TmaMediaItem(getNodeInt(node, NODE_FLAGS),
+                CONTENT_STYLES[getNodeInt(node, NODE_PLAYABLE_STYLE)],
+                CONTENT_STYLES[getNodeInt(node, NODE_BROWSABLE_STYLE)],
+                new NodeMetadata(node),
+                decodeCustomActions(node), decodeEvents(node),
+                () -> decodeChildren(node), getString(getNodeInt(node, NODE_INCLUDE)));
+    }
+
+    private List<TmaMediaItem> decodeChildren(int node) {
+        int first = getNodeInt(node, NODE_FIRST_CHILD);
+        int count = getNodeInt(node, NODE_CHILD_COUNT);
+        List<TmaMediaItem> children = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            children.add(decodeItem(first + i));
+        }
+        return children;
+    }
+
+    /** Returns the offset of the node's metadata entry for the key, or -1. */
+    private int findMetadataEntry(int node, String key) {
+        int start = getNodeInt(node, NODE_METADATA_START);
+        int count = getNodeInt(node, NODE_METADATA_COUNT);
+        for (int i = start; i < start + count; i++) {
+            int offset = mMetadataStart + i * METADATA_ENTRY_SIZE;
+            if (key.equals(getString(mBuffer.getInt(offset)))) return offset;
+        }
+        return -1;
+    }
+
+    private MediaMetadataCompat decodeMetadata(int node) {
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
+        int start = getNodeInt(node, NODE_METADATA_START);
+        int count = getNodeInt(node, NODE_METADATA_COUNT);
+        for (int i = start; i < start + count; i++) {
+            int offset = mMetadataStart + i * METADATA_ENTRY_SIZE;
+            String key = getString(mBuffer.getInt(offset));
+            long value = mBuffer.getLong(offset + 8);
+            if (mBuffer.getInt(offset + 4) == TYPE_LONG) {
+                builder.putLong(key, value);
+            } else {
+                builder.putString(key, getString((int) value));
+            }
+        }
+        return builder.build();
+    }
+
+    private List<TmaCustomAction> decodeCustomActions(int node) {
+        int start = getNodeInt(node, NODE_ACTIONS_START);
+        int count = getNodeInt(node, NODE_ACTIONS_COUNT);
+        if (count <= 0) return Collections.emptyList();
+        List<TmaCustomAction> actions = new ArrayList<>(count);
+        for (int i = start; i < start + count; i++) {
+            actions.add(CUSTOM_ACTIONS[mBuffer.getInt(mActionsStart + i * 4)]);
+        }
+        return actions;
+    }
+
+    private List<TmaMediaEvent> decodeEvents(int node) {
+        int start = getNodeInt(node, NODE_EVENTS_START);
+        int count = getNodeInt(node, NODE_EVENTS_COUNT);
+        if (count <= 0) return Collections.singletonList(INSTANT_PLAYBACK);
+        List<TmaMediaEvent> events = new ArrayList<>(count);
+        for (int i = start; i < start + count; i++) {
+            int offset = mEventsStart + i * EVENT_INTS * 4;
+            events.add(new TmaMediaEvent(
+                    EVENT_STATES[mBuffer.getInt(offset + EVENT_STATE * 4)],
+                    ERROR_CODES[mBuffer.getInt(offset + EVENT_ERROR_CODE * 4)],
+                    getString(mBuffer.getInt(offset + EVENT_ERROR_MESSAGE * 4)),
+                    getString(mBuffer.getInt(offset + EVENT_ACTION_LABEL * 4)),
+                    RESOLUTION_INTENTS[mBuffer.getInt(offset + EVENT_RESOLUTION_INTENT * 4)],
+                    mBuffer.getInt(offset + EVENT_POST_DELAY_MS * 4),
+                    getString(mBuffer.getInt(offset + EVENT_EXCEPTION_CLASS * 4))));
+        }
+        return events;
+    }
+
+    /**
+     * The metadata of a node, read from the buffer when needed. The {@link MediaMetadataCompat}
+     * is only built when the item is sent, and cached along with those of the json files.
+     */
+    private final class NodeMetadata implements TmaMediaItem.Metadata {
+        private final int mNode;
+
+        NodeMetadata(int node) {
+            mNode = node;
+        }
+
+        @Nullable
+        @Override
+        public String getString(String key) {
+            int offset = findMetadataEntry(mNode, key);
+            if (offset < 0 || mBuffer.getInt(offset + 4) != TYPE_TEXT) return null;
+            return TmaCatalog.this.getString((int) mBuffer.getLong(offset + 8));
+        }
+
+        @Nullable
+        @Override
+        public CharSequence getText(String key) {
+            return getString(key);
+        }
+
+        @Override
+        public long getLong(String key) {
+            int offset = findMetadataEntry(mNode, key);
+            if (offset < 0 || mBuffer.getInt(offset + 4) != TYPE_LONG) return 0;
+            return mBuffer.getLong(offset + 8);
+        }
+
+        @Override
+        public boolean containsKey(String key) {
+            return findMetadataEntry(mNode, key) >= 0;
+        }
+
+        @Override
+        public MediaMetadataCompat toMediaMetadata() {
+            return TmaMetadataStore.getMediaMetadata(this, () -> decodeMetadata(mNode));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp.loader;
+
+import android.os.SystemClock;
+
+import com.android.car.media.testmediaapp.TmaMediaEvent;
+import com.android.car.media.testmediaapp.TmaMediaItem;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+
+/**
+ * Measures the heap used by a fully materialized {@link TmaMediaItem} tree and by a
+ * {@link TmaCompactCatalog} holding the same generated catalog, for about 10k, 100k and 1M nodes.
+ * The catalogs have two levels, short titles and no art, so that most of the difference comes
+ * from the topology. The measures come from the used heap after garbage collections, so they are
+ * only indicative, and the largest catalog may not fit in the heap of the device.
+ */
+public class TmaCatalogFootprint {
+
+    private static final int[] FAN_OUTS = { 100, 316, 1000 };
+
+    private static final TmaMediaItemReader.ItemFactory<TmaMediaItem, TmaMediaEvent>
+            OBJECT_GRAPH_FACTORY = (flags, playableStyle, browsableStyle, metadata,
+                    customActions, mediaEvents, children, include) -> new TmaMediaItem(flags,
+                            playableStyle, browsableStyle, metadata, customActions, mediaEvents,
+                            (children != null) ? children : Collections.emptyList(), include);
+
+    /** Runs the comparison, which blocks the calling thread for several seconds. */
+    public static void dump(PrintWriter writer, String prefix) {
+        for (int fanOut : FAN_OUTS) {
+            TmaCatalogGenerator generator = new TmaCatalogGenerator(1, 2, fanOut, 0, 8, 0);
+            int nodeCount = 1 + fanOut + fanOut * fanOut;
+            writer.println(prefix + nodeCount + " nodes:");
+            writer.println(prefix + "  object graph: " + measure(
+                    () -> generator.generate(OBJECT_GRAPH_FACTORY)));
+            writer.println(prefix + "  compact catalog: " + measure(() -> {
+                TmaCompactCatalog.Builder builder = new TmaCompactCatalog.Builder();
+                return builder.build(generator.generate(builder));
+            }));
+            writer.flush();
+        }
+    }
+
+    private interface Allocation {
+        Object allocate();
+    }
+
+    private static String measure(Allocation allocation) {
+        long startMs = SystemClock.elapsedRealtime();
+        long before = getUsedHeap();
+        Object result;
+        try {
+            result = allocation.allocate();
+        } catch (OutOfMemoryError e) {
+            return "out of memory";
+        }
+        long bytes = getUsedHeap() - before;
+        long durationMs = SystemClock.elapsedRealtime() - startMs;
+        // Keeps the result reachable until the heap was measured.
+        return (result != null) ? (bytes / 1024) + "KB (" + durationMs + "ms)" : "failed";
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
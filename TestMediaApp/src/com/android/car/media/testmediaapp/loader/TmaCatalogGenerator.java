@@ -0,0 +1,267 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp.loader;
+
+import static android.support.v4.media.MediaBrowserCompat.MediaItem.FLAG_BROWSABLE;
+import static android.support.v4.media.MediaBrowserCompat.MediaItem.FLAG_PLAYABLE;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_ART_URI;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_DISPLAY_SUBTITLE;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_DURATION;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_MEDIA_ID;
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_TITLE;
+
+import static com.android.car.media.testmediaapp.TmaMediaEvent.INSTANT_PLAYBACK;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.media.testmediaapp.TmaAssetProvider;
+import com.android.car.media.testmediaapp.TmaMediaEvent;
+import com.android.car.media.testmediaapp.TmaMediaItem;
+import com.android.car.media.testmediaapp.TmaMediaItem.ContentStyle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Generates a deterministic catalog of any size for scale tests. Every attribute of a node is
+ * derived from a hash of the seed and of the node's position, and the nodes are only created when
+ * the children of their parent are requested, so the catalog is never stored. The media ids
+ * encode the configuration and the position of the nodes, which lets {@link #getItem} rebuild
+ * any node without browsing to it.
+ */
+public class TmaCatalogGenerator {
+
+    private static final String ID_PREFIX = "_GEN_";
+    private static final char CONFIG_SEPARATOR = '-';
+    private static final char PATH_SEPARATOR = '/';
+
+    private static final long SALT_PLAYABLE = 0x51ed2701L;
+    private static final long SALT_ART = 0x2a7f3c19L;
+    private static final long SALT_TITLE = 0x6c8e9cf5L;
+    private static final long SALT_DURATION = 0x1b873593L;
+
+    private static final String[] SYLLABLES = { "ka", "lo", "mi", "ne", "ru", "sa", "to", "vi",
+            "da", "fe", "go", "hu", "ji", "po", "re", "zu" };
+    private static final String[] ART_FILES = { "bee.jpg", "clouds.jpg", "flower1.jpg",
+            "flower2.jpg", "flower3.jpg", "flowers.jpg", "leaves.jpg", "sage.jpg", "tree.jpg" };
+    private static final String ART_DIR = "bitmaps/nature-256/";
+
+    private final int mSeed;
+    private final int mDepth;
+    private final int mFanOut;
+    private final int mPlayablePercent;
+    private final int mTitleLength;
+    private final int mArtPercent;
+    /** The media id of the root, and the prefix of all the other media ids. */
+    private final String mRootId;
+
+    /**
+     * @param depth the number of levels below the root, the last level is only made of playable
+     *              items.
+     * @param playablePercent the percentage of playable items in the other levels.
+     */
+    public TmaCatalogGenerator(int seed, int depth, int fanOut, int playablePercent,
+            int titleLength, int artPercent) {
+        mSeed = seed;
+        mDepth = depth;
+        mFanOut = fanOut;
+        mPlayablePercent = playablePercent;
+        mTitleLength = titleLength;
+        mArtPercent = artPercent;
+        mRootId = ID_PREFIX + seed + CONFIG_SEPARATOR + depth + CONFIG_SEPARATOR + fanOut
+                + CONFIG_SEPARATOR + playablePercent + CONFIG_SEPARATOR + titleLength
+                + CONFIG_SEPARATOR + artPercent;
+    }
+
+    public static boolean isGeneratedId(String mediaId) {
+        return mediaId.startsWith(ID_PREFIX);
+    }
+
+    /** Returns the generator of the given generated media id, or null if it isn't valid. */
+    @Nullable
+    public static TmaCatalogGenerator fromMediaId(String mediaId) {
+        if (!isGeneratedId(mediaId)) return null;
+        int configEnd = mediaId.indexOf(PATH_SEPARATOR);
+        String config = mediaId.substring(ID_PREFIX.length(),
+                (configEnd >= 0) ? configEnd : mediaId.length());
+        String[] values = config.split(String.valueOf(CONFIG_SEPARATOR));
+        if (values.length != 6) return null;
+        try {
+            return new TmaCatalogGenerator(Integer.parseInt(values[0]),
+                    Integer.parseInt(values[1]), Integer.parseInt(values[2]),
+                    Integer.parseInt(values[3]), Integer.parseInt(values[4]),
+                    Integer.parseInt(values[5]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public TmaMediaItem getRoot() {
+        return createItem(mRootId, 0, 0, mix(mSeed));
+    }
+
+    /**
+     * Returns the item with the given media id, or null if this generator doesn't generate it.
+     * The item is returned as a child of its parent (so that it can be played with its siblings),
+     * which costs O(depth) hashes plus the creation of its siblings.
+     */
+    @Nullable
+    public TmaMediaItem getItem(String mediaId) {
+        if (!mediaId.startsWith(mRootId)) return null;
+        if (mediaId.length() == mRootId.length()) return getRoot();
+
+        String path = mediaId.substring(mRootId.length());
+        if (path.charAt(0) != PATH_SEPARATOR) return null;
+        String[] indexes = path.substring(1).split(String.valueOf(PATH_SEPARATOR));
+        if (indexes.length > mDepth) return null;
+
+        int[] position = new int[indexes.length];
+        try {
+            for (int i = 0; i < indexes.length; i++) {
+                position[i] = Integer.parseInt(indexes[i]);
+                if (position[i] < 0 || position[i] >= mFanOut) return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        // Only browsable nodes have children.
+        long hash = mix(mSeed);
+        StringBuilder parentId = new StringBuilder(mRootId);
+        for (int level = 1; level < position.length; level++) {
+            hash = childHash(hash, position[level - 1]);
+            if (isPlayable(level, hash)) return null;
+            parentId.append(PATH_SEPARATOR).append(position[level - 1]);
+        }
+        int parentLevel = position.length - 1;
+        TmaMediaItem parent = createItem(parentId.toString(), parentLevel,
+                (parentLevel > 0) ? position[parentLevel - 1] : 0, hash);
+        TmaMediaItem result = parent.getChildren().get(position[parentLevel]);
+        return mediaId.equals(result.getMediaId()) ? result : null;
+    }
+
+    private boolean isPlayable(int level, long hash) {
+        if (level == 0) return false;
+        return level >= mDepth || percent(hash, SALT_PLAYABLE) < mPlayablePercent;
+    }
+
+    /**
+     * Passes the whole catalog to the factory, children before their parent. Unlike
+     * {@link #getRoot}, every node is created, so this is only meant for catalogs that fit in
+     * memory.
+     */
+    <T> T generate(TmaMediaItemReader.ItemFactory<T, TmaMediaEvent> factory) {
+        return generate(factory, mRootId, 0, 0, mix(mSeed));
+    }
+
+    private <T> T generate(TmaMediaItemReader.ItemFactory<T, TmaMediaEvent> factory,
+            String mediaId, int level, int index, long hash) {
+        boolean playable = isPlayable(level, hash);
+        List<T> children = null;
+        if (!playable) {
+            children = new ArrayList<>(mFanOut);
+            for (int i = 0; i < mFanOut; i++) {
+                children.add(generate(factory, mediaId + PATH_SEPARATOR + i, level + 1, i,
+                        childHash(hash, i)));
+            }
+        }
+        return factory.create(playable ? FLAG_PLAYABLE : FLAG_BROWSABLE, ContentStyle.NONE,
+                ContentStyle.NONE,
+                TmaMediaItem.Metadata.of(createMetadata(mediaId, level, index, hash, playable)),
+                Collections.emptyList(), Collections.singletonList(INSTANT_PLAYBACK), children,
+                null);
+    }
+
+    private TmaMediaItem createItem(String mediaId, int level, int index, long hash) {
+        boolean playable = isPlayable(level, hash);
+        TmaMediaItem.ChildrenProvider childrenProvider = playable ? null
+                : () -> createChildren(mediaId, level + 1, hash);
+        return new TmaMediaItem(playable ? FLAG_PLAYABLE : FLAG_BROWSABLE, ContentStyle.NONE,
+                ContentStyle.NONE,
+                TmaMediaItem.Metadata.of(createMetadata(mediaId, level, index, hash, playable)),
+                Collections.emptyList(), Collections.singletonList(INSTANT_PLAYBACK),
+                childrenProvider, null);
+    }
+
+    private MediaMetadataCompat createMetadata(String mediaId, int level, int index, long hash,
+            boolean playable) {
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
+                .putString(METADATA_KEY_MEDIA_ID, mediaId)
+                .putString(METADATA_KEY_TITLE, createTitle(hash))
+                .putString(METADATA_KEY_DISPLAY_SUBTITLE, "Level " + level + " item " + index);
+        if (percent(hash, SALT_ART) < mArtPercent) {
+            String artFile = ART_FILES[(int) ((mix(hash ^ SALT_ART) >>> 1) % ART_FILES.length)];
+            builder.putString(METADATA_KEY_ART_URI,
+                    TmaAssetProvider.buildUriString(ART_DIR + artFile));
+        }
+        if (playable) {
+            // Between 30 seconds and 5 minutes.
+            builder.putLong(METADATA_KEY_DURATION,
+                    30000 + (mix(hash ^ SALT_DURATION) >>> 1) % 270000);
+        }
+        return builder.build();
+    }
+
+    private List<TmaMediaItem> createChildren(String parentId, int level, long parentHash) {
+        List<TmaMediaItem> children = new ArrayList<>(mFanOut);
+        for (int i = 0; i < mFanOut; i++) {
+            children.add(createItem(parentId + PATH_SEPARATOR + i, level, i,
+                    childHash(parentHash, i)));
+        }
+        return children;
+    }
+
+    /** Returns capitalized words of random syllables, with exactly mTitleLength characters. */
+    private String createTitle(long hash) {
+        StringBuilder title = new StringBuilder(mTitleLength + 2);
+        long random = mix(hash ^ SALT_TITLE);
+        int wordLength = 0;
+        while (title.length() < mTitleLength) {
+            if (wordLength > 0 && (random & 3) == 0) {
+                title.append(' ');
+                wordLength = 0;
+            } else {
+                String syllable = SYLLABLES[(int) ((random >>> 2) & 15)];
+                title.append((wordLength == 0) ? Character.toUpperCase(syllable.charAt(0))
+                        : syllable.charAt(0)).append(syllable.charAt(1));
+                wordLength++;
+            }
+            random = mix(random);
+        }
+        title.setLength(mTitleLength);
+        return title.toString().trim();
+    }
+
+    private static long childHash(long parentHash, int index) {
+        return mix(parentHash + (index + 1) * 0x9e3779b97f4a7c15L);
+    }
+
+    /** Returns a value in [0, 100) derived from the hash and the salt. */
+    private static int percent(long hash, long salt) {
+        return (int) ((mix(hash ^ salt) >>> 1) % 100);
+    }
+
+    /** The finalizer of SplitMix64, spreads the bits of the input over the whole output. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
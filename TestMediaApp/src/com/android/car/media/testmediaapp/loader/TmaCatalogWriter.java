@@ -0,0 +1,292 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp.loader;
+
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_MEDIA_ID;
+
+import android.util.JsonReader;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.media.testmediaapp.TmaMediaEvent.EventState;
+import com.android.car.media.testmediaapp.TmaMediaEvent.ResolutionIntent;
+import com.android.car.media.testmediaapp.TmaMediaEvent.StateErrorCode;
+import com.android.car.media.testmediaapp.TmaMediaItem.ContentStyle;
+import com.android.car.media.testmediaapp.TmaMediaItem.Metadata;
+import com.android.car.media.testmediaapp.TmaMediaItem.TmaCustomAction;
+import com.android.car.media.testmediaapp.loader.TmaMediaMetadataReader.MetadataKey;
+import com.android.car.media.testmediaapp.loader.TmaMediaMetadataReader.ValueType;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compiles a json media items file into the binary format read by {@link TmaCatalog}. The json
+ * is parsed with the regular readers, so flags, content styles and events are stored already
+ * parsed.
+ */
+class TmaCatalogWriter {
+
+    private static final String TAG = "TmaCatalogWriter";
+
+    /** Intermediate representation of an item, only used while compiling. */
+    private static final class Node {
+        final int[] mRecord = new int[TmaCatalog.NODE_INTS];
+        final String[] mMetadataKeys;
+        final Object[] mMetadataValues;
+        final int[] mCustomActions;
+        final List<int[]> mEvents;
+        final List<Node> mChildren;
+
+        Node(String[] metadataKeys, Object[] metadataValues, int[] customActions,
+                List<int[]> events, List<Node> children) {
+            mMetadataKeys = metadataKeys;
+            mMetadataValues = metadataValues;
+            mCustomActions = customActions;
+            mEvents = events;
+            mChildren = children;
+        }
+    }
+
+    private final TmaMediaItemReader mMediaItemReader = TmaMediaItemReader.getInstance();
+    private final Map<String, Integer> mStringIndexes = new HashMap<>();
+    private final List<String> mStrings = new ArrayList<>();
+    @Nullable
+    private Node mRoot;
+
+    /** Reads the json file to compile, returns false if it doesn't contain a valid item. */
+    boolean readJson(JsonReader reader) throws IOException {
+        mRoot = mMediaItemReader.read(reader, this::createNode, this::createEvent,
+                new TmaMetadataStore(), Integer.MAX_VALUE);
+        return mRoot != null;
+    }
+
+    /** Like {@link #readJson(JsonReader)}, but parses the children of the root on the pool. */
+    boolean readJson(String json, ForkJoinPool pool) throws IOException {
+        mRoot = mMediaItemReader.readParallel(json, this::createNode, this::createEvent, pool);
+        return mRoot != null;
+    }
+
+    private Node createNode(int flags, ContentStyle playableStyle, ContentStyle browsableStyle,
+            Metadata metadata, List<TmaCustomAction> customActions,
+            List<int[]> mediaEvents, List<Node> children, String include) {
+        // Read from the getters, building the MediaMetadataCompat would fill the shared cache.
+        List<String> keyList = new ArrayList<>();
+        List<Object> valueList = new ArrayList<>();
+        for (MetadataKey key : MetadataKey.values()) {
+            Object value = null;
+            if (key.mKeyType == ValueType.TEXT) {
+                value = metadata.getString(key.mLongName);
+            } else if (key.mKeyType == ValueType.LONG && metadata.containsKey(key.mLongName)) {
+                value = metadata.getLong(key.mLongName);
+            }
+            if (value != null) {
+                keyList.add(key.mLongName);
+                valueList.add(value);
+            }
+        }
+        String[] keys = keyList.toArray(new String[0]);
+        Object[] values = valueList.toArray();
+
+        int[] actions = new int[customActions.size()];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = customActions.get(i).ordinal();
+        }
+
+        Node node = new Node(keys, values, actions, mediaEvents, children);
+        node.mRecord[TmaCatalog.NODE_FLAGS] = flags;
+        node.mRecord[TmaCatalog.NODE_PLAYABLE_STYLE] = playableStyle.ordinal();
+        node.mRecord[TmaCatalog.NODE_BROWSABLE_STYLE] = browsableStyle.ordinal();
+        node.mRecord[TmaCatalog.NODE_MEDIA_ID] =
+                addString(metadata.getString(METADATA_KEY_MEDIA_ID));
+        node.mRecord[TmaCatalog.NODE_INCLUDE] = addString(include);
+        return node;
+    }
+
+    private int[] createEvent(EventState state, StateErrorCode errorCode, String errorMessage,
+            String actionLabel, ResolutionIntent resolutionIntent, int postDelayMs,
+            String exceptionClass) {
+        int[] event = new int[TmaCatalog.EVENT_INTS];
+        event[TmaCatalog.EVENT_STATE] = state.ordinal();
+        event[TmaCatalog.EVENT_ERROR_CODE] = errorCode.ordinal();
+        event[TmaCatalog.EVENT_ERROR_MESSAGE] = addString(errorMessage);
+        event[TmaCatalog.EVENT_ACTION_LABEL] = addString(actionLabel);
+        event[TmaCatalog.EVENT_RESOLUTION_INTENT] = resolutionIntent.ordinal();
+        event[TmaCatalog.EVENT_POST_DELAY_MS] = postDelayMs;
+        event[TmaCatalog.EVENT_EXCEPTION_CLASS] = addString(exceptionClass);
+        return event;
+    }
+
+    private int addString(@Nullable String value) {
+        if (value == null) return TmaCatalog.NO_STRING;
+        Integer index = mStringIndexes.get(value);
+        if (index == null) {
+            index = mStrings.size();
+            mStrings.add(value);
+            mStringIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    /** Writes the catalog read by {@link #readJson}, tagged with the given source stamp. */
+    void write(OutputStream stream, long sourceStamp) throws IOException {
+        if (mRoot == null) throw new IllegalStateException("Nothing to write");
+
+        // Breadth first order keeps the children of each node contiguous.
+        List<Node> nodes = new ArrayList<>();
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        mRoot.mRecord[TmaCatalog.NODE_PARENT] = -1;
+        queue.add(mRoot);
+        int metadataCount = 0;
+        int eventCount = 0;
+        int actionCount = 0;
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            int[] record = node.mRecord;
+            int index = nodes.size();
+            nodes.add(node);
+
+            record[TmaCatalog.NODE_METADATA_START] = metadataCount;
+            record[TmaCatalog.NODE_METADATA_COUNT] = node.mMetadataKeys.length;
+            metadataCount += node.mMetadataKeys.length;
+            record[TmaCatalog.NODE_EVENTS_START] = eventCount;
+            record[TmaCatalog.NODE_EVENTS_COUNT] = node.mEvents.size();
+            eventCount += node.mEvents.size();
+            record[TmaCatalog.NODE_ACTIONS_START] = actionCount;
+            record[TmaCatalog.NODE_ACTIONS_COUNT] = node.mCustomActions.length;
+            actionCount += node.mCustomActions.length;
+
+            record[TmaCatalog.NODE_FIRST_CHILD] = index + queue.size() + 1;
+            record[TmaCatalog.NODE_CHILD_COUNT] = node.mChildren.size();
+            for (int i = 0; i < node.mChildren.size(); i++) {
+                Node child = node.mChildren.get(i);
+                child.mRecord[TmaCatalog.NODE_PARENT] = index;
+                child.mRecord[TmaCatalog.NODE_INDEX_IN_PARENT] = i;
+                queue.add(child);
+            }
+        }
+
+        // The metadata values are added to the pool before writing its offsets.
+        for (Node node : nodes) {
+            for (int i = 0; i < node.mMetadataKeys.length; i++) {
+                addString(node.mMetadataKeys[i]);
+                Object value = node.mMetadataValues[i];
+                if (!(value instanceof Long) && value != null) {
+                    addString(value.toString());
+                }
+            }
+        }
+
+        int[] idTable = buildIdTable(nodes);
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(TmaCatalog.MAGIC);
+        out.writeInt(TmaCatalog.VERSION);
+        out.writeLong(sourceStamp);
+        out.writeInt(mStrings.size());
+        out.writeInt(nodes.size());
+        out.writeInt(metadataCount);
+        out.writeInt(eventCount);
+        out.writeInt(actionCount);
+        out.writeInt(idTable.length);
+
+        List<byte[]> stringBytes = new ArrayList<>(mStrings.size());
+        int stringOffset = 0;
+        for (String string : mStrings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            stringBytes.add(bytes);
+            out.writeInt(stringOffset);
+            stringOffset += bytes.length;
+        }
+        out.writeInt(stringOffset);
+
+        for (Node node : nodes) {
+            for (int value : node.mRecord) {
+                out.writeInt(value);
+            }
+        }
+        for (Node node : nodes) {
+            for (int i = 0; i < node.mMetadataKeys.length; i++) {
+                Object value = node.mMetadataValues[i];
+                out.writeInt(addString(node.mMetadataKeys[i]));
+                if (value instanceof Long) {
+                    out.writeInt(TmaCatalog.TYPE_LONG);
+                    out.writeLong((Long) value);
+                } else {
+                    out.writeInt(TmaCatalog.TYPE_TEXT);
+                    out.writeLong(addString((value != null) ? value.toString() : null));
+                }
+            }
+        }
+        for (Node node : nodes) {
+            for (int[] event : node.mEvents) {
+                for (int value : event) {
+                    out.writeInt(value);
+                }
+            }
+        }
+        for (Node node : nodes) {
+            for (int action : node.mCustomActions) {
+                out.writeInt(action);
+            }
+        }
+        for (int value : idTable) {
+            out.writeInt(value);
+        }
+        for (byte[] bytes : stringBytes) {
+            out.write(bytes);
+        }
+        out.flush();
+    }
+
+    /** Open addressing table (linear probing) from media id hash codes to node indexes. */
+    private int[] buildIdTable(List<Node> nodes) {
+        int size = Integer.highestOneBit(Math.max(nodes.size(), 1)) * 4;
+        int[] table = new int[size];
+        Arrays.fill(table, -1);
+        for (int index = 0; index < nodes.size(); index++) {
+            int idIndex = nodes.get(index).mRecord[TmaCatalog.NODE_MEDIA_ID];
+            if (idIndex == TmaCatalog.NO_STRING) continue;
+            String mediaId = mStrings.get(idIndex);
+            int slot = mediaId.hashCode() & (size - 1);
+            boolean duplicate = false;
+            while (table[slot] >= 0) {
+                if (nodes.get(table[slot]).mRecord[TmaCatalog.NODE_MEDIA_ID] == idIndex) {
+                    duplicate = true;
+                    break;
+                }
+                slot = (slot + 1) & (size - 1);
+            }
+            if (duplicate) {
+                Log.e(TAG, "Ignoring item with duplicate media id: " + mediaId);
+            } else {
+                table[slot] = index;
+            }
+        }
+        return table;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp.loader;
+
+import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_MEDIA_ID;
+
+import static com.android.car.media.testmediaapp.TmaMediaEvent.INSTANT_PLAYBACK;
+
+import android.util.JsonReader;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.media.testmediaapp.TmaMediaEvent;
+import com.android.car.media.testmediaapp.TmaMediaItem;
+import com.android.car.media.testmediaapp.TmaMediaItem.ContentStyle;
+import com.android.car.media.testmediaapp.TmaMediaItem.TmaCustomAction;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * In-heap store of a media items tree that avoids the per node overhead of {@link TmaMediaItem}:
+ * the topology lives in parallel primitive arrays indexed by node (breadth first, so that the
+ * children of a node are contiguous), and the media ids and includes in a shared string pool.
+ * As with {@link TmaCatalog}, nodes are only decoded into {@link TmaMediaItem}s when the tree
+ * reaches them, and an id table lets {@link TmaMediaItem#findDescendant} locate any node without
+ * decoding the others. Built with a {@link Builder}.
+ */
+public class TmaCompactCatalog implements TmaMediaItem.DescendantIndex {
+
+    private static final String TAG = "TmaCompactCatalog";
+
+    private static final int NO_STRING = -1;
+    private static final ContentStyle[] CONTENT_STYLES = ContentStyle.values();
+
+    private final int[] mParents;
+    private final int[] mFirstChildren;
+    private final int[] mChildCounts;
+    private final int[] mFlags;
+    /** The playable style in the low 4 bits, the browsable style in the high 4 bits. */
+    private final byte[] mStyles;
+    private final int[] mMediaIds;
+    private final int[] mIncludes;
+    private final String[] mStrings;
+    private final TmaMediaItem.Metadata[] mMetadata;
+    /** Indexes in {@link #mListPool}, equal lists are only stored once. */
+    private final int[] mCustomActions;
+    private final int[] mMediaEvents;
+    private final List<?>[] mListPool;
+    /** Open addressing table (linear probing) from media id hash codes to nodes. */
+    private final int[] mIdTable;
+
+    private TmaCompactCatalog(Builder builder, int nodeCount) {
+        mParents = new int[nodeCount];
+        mFirstChildren = new int[nodeCount];
+        mChildCounts = new int[nodeCount];
+        mFlags = new int[nodeCount];
+        mStyles = new byte[nodeCount];
+        mMediaIds = new int[nodeCount];
+        mIncludes = new int[nodeCount];
+        mMetadata = new TmaMediaItem.Metadata[nodeCount];
+        mCustomActions = new int[nodeCount];
+        mMediaEvents = new int[nodeCount];
+        mStrings = builder.mStrings.toArray(new String[0]);
+        mListPool = builder.mLists.toArray(new List<?>[0]);
+        mIdTable = new int[Integer.highestOneBit(Math.max(nodeCount, 1)) * 4];
+        Arrays.fill(mIdTable, -1);
+    }
+
+    /** Parses a whole json media items file, returns null if it doesn't contain a valid item. */
+    @Nullable
+    static TmaCompactCatalog fromJson(JsonReader reader) throws IOException {
+        Builder builder = new Builder();
+        Builder.Node root = TmaMediaItemReader.getInstance().read(reader, builder,
+                TmaMediaEvent::new, new TmaMetadataStore(), Integer.MAX_VALUE);
+        return (root != null) ? builder.build(root) : null;
+    }
+
+    /** Like {@link #fromJson(JsonReader)}, but parses the children of the root on the pool. */
+    @Nullable
+    static TmaCompactCatalog fromJson(String json, ForkJoinPool pool) throws IOException {
+        Builder builder = new Builder();
+        Builder.Node root = TmaMediaItemReader.getInstance().readParallel(json, builder,
+                TmaMediaEvent::new, pool);
+        return (root != null) ? builder.build(root) : null;
+    }
+
+    public int getNodeCount() {
+        return mParents.length;
+    }
+
+    /** Returns the root item of the catalog, its descendants are decoded on demand. */
+    public TmaMediaItem getRoot() {
+        TmaMediaItem root = decodeItem(0);
+        root.setDescendantIndex(this);
+        return root;
+    }
+
+    @Nullable
+    @Override
+    public int[] getPath(String mediaId) {
+        int node = findNode(mediaId);
+        if (node < 0) return null;
+
+        int depth = 0;
+        for (int n = node; mParents[n] >= 0; n = mParents[n]) {
+            depth++;
+        }
+        int[] path = new int[depth];
+        for (int n = node; depth > 0; n = mParents[n]) {
+            path[--depth] = n - mFirstChildren[mParents[n]];
+        }
+        return path;
+    }
+
+    private int findNode(String mediaId) {
+        int mask = mIdTable.length - 1;
+        for (int slot = mediaId.hashCode() & mask; mIdTable[slot] >= 0; slot = (slot + 1) & mask) {
+            int node = mIdTable[slot];
+            if (mediaId.equals(getString(mMediaIds[node]))) return node;
+        }
+        return -1;
+    }
+
+    @Nullable
+    private String getString(int index) {
+        return (index == NO_STRING) ? null : mStrings[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    private TmaMediaItem decodeItem(int node) {
+        int styles = mStyles[node];
+        return new TmaMediaItem(mFlags[node], CONTENT_STYLES[styles & 0xf],
+                CONTENT_STYLES[(styles >> 4) & 0xf], mMetadata[node],
+                (List<TmaCustomAction>) mListPool[mCustomActions[node]],
+                (List<TmaMediaEvent>) mListPool[mMediaEvents[node]],
+                () -> decodeChildren(node), getString(mIncludes[node]));
+    }
+
+    private List<TmaMediaItem> decodeChildren(int node) {
+        int first = mFirstChildren[node];
+        int count = mChildCounts[node];
+        List<TmaMediaItem> children = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            children.add(decodeItem(first + i));
+        }
+        return children;
+    }
+
+    /**
+     * Collects the items created by {@link TmaMediaItemReader#read} (or any other producer of
+     * {@link TmaMediaItemReader.ItemFactory} calls), then lays them out in a catalog.
+     */
+    public static class Builder
+            implements TmaMediaItemReader.ItemFactory<Builder.Node, TmaMediaEvent> {
+
+        /** Intermediate representation of an item, only used while building. */
+        public static final class Node {
+            final int mFlags;
+            final byte mStyles;
+            final TmaMediaItem.Metadata mMetadata;
+            final int mMediaId;
+            final int mInclude;
+            final int mCustomActions;
+            final int mMediaEvents;
+            final List<Node> mChildren;
+
+            Node(int flags, byte styles, TmaMediaItem.Metadata metadata, int mediaId, int include,
+                    int customActions, int mediaEvents, List<Node> children) {
+                mFlags = flags;
+                mStyles = styles;
+                mMetadata = metadata;
+                mMediaId = mediaId;
+                mInclude = include;
+                mCustomActions = customActions;
+                mMediaEvents = mediaEvents;
+                mChildren = children;
+            }
+        }
+
+        private final Map<String, Integer> mStringIndexes = new HashMap<>();
+        private final List<String> mStrings = new ArrayList<>();
+        private final Map<List<?>, Integer> mListIndexes = new HashMap<>();
+        private final List<List<?>> mLists = new ArrayList<>();
+
+        @Override
+        public Node create(int flags, ContentStyle playableStyle, ContentStyle browsableStyle,
+                TmaMediaItem.Metadata metadata, List<TmaCustomAction> customActions,
+                List<TmaMediaEvent> mediaEvents, @Nullable List<Node> children,
+                String include) {
+            if (mediaEvents.isEmpty()) {
+                mediaEvents = Collections.singletonList(INSTANT_PLAYBACK);
+            }
+            byte styles = (byte) (playableStyle.ordinal() | (browsableStyle.ordinal() << 4));
+            return new Node(flags, styles, metadata,
+                    addString(metadata.getString(METADATA_KEY_MEDIA_ID)), addString(include),
+                    addList(customActions), addList(mediaEvents),
+                    (children != null) ? children : Collections.emptyList());
+        }
+
+        private int addString(@Nullable String value) {
+            if (value == null) return NO_STRING;
+            Integer index = mStringIndexes.get(value);
+            if (index == null) {
+                index = mStrings.size();
+                mStrings.add(value);
+                mStringIndexes.put(value, index);
+            }
+            return index;
+        }
+
+        private int addList(List<?> list) {
+            Integer index = mListIndexes.get(list);
+            if (index == null) {
+                index = mLists.size();
+                List<?> copy = Collections.unmodifiableList(new ArrayList<>(list));
+                mLists.add(copy);
+                mListIndexes.put(copy, index);
+            }
+            return index;
+        }
+
+        /** Lays out the tree of the given root, breadth first. */
+        public TmaCompactCatalog build(Node root) {
+            int nodeCount = 0;
+            ArrayDeque<Node> queue = new ArrayDeque<>();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                nodeCount++;
+                queue.addAll(queue.poll().mChildren);
+            }
+
+            TmaCompactCatalog catalog = new TmaCompactCatalog(this, nodeCount);
+            queue.add(root);
+            catalog.mParents[0] = -1;
+            int index = 0;
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                catalog.mFlags[index] = node.mFlags;
+                catalog.mStyles[index] = node.mStyles;
+                catalog.mMetadata[index] = node.mMetadata;
+                catalog.mMediaIds[index] = node.mMediaId;
+                catalog.mIncludes[index] = node.mInclude;
+                catalog.mCustomActions[index] = node.mCustomActions;
+                catalog.mMediaEvents[index] = node.mMediaEvents;
+
+                int firstChild = index + queue.size() + 1;
+                catalog.mFirstChildren[index] = firstChild;
+                catalog.mChildCounts[index] = node.mChildren.size();
+                for (int i = 0; i < node.mChildren.size(); i++) {
+                    catalog.mParents[firstChild + i] = index;
+                    queue.add(node.mChildren.get(i));
+                }
+                addToIdTable(catalog, index);
+                index++;
+            }
+            return catalog;
+        }
+
+        private static void addToIdTable(TmaCompactCatalog catalog, int node) {
+            String mediaId = catalog.getString(catalog.mMediaIds[node]);
+            if (mediaId == null) return;
+            int[] table = catalog.mIdTable;
+            int mask = table.length - 1;
+            int slot = mediaId.hashCode() & mask;
+            while (table[slot] >= 0) {
+                if (catalog.mMediaIds[table[slot]] == catalog.mMediaIds[node]) {
+                    Log.e(TAG, "Ignoring item with duplicate media id: " + mediaId);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = node;
+        }
+    }
+}
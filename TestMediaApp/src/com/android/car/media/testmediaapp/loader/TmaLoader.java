@@ -17,19 +17,352 @@
 package com.android.car.media.testmediaapp.loader;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
 
 import com.android.car.media.testmediaapp.TmaMediaItem;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaCatalogStore;
+import com.android.car.media.testmediaapp.prefs.TmaPrefs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * Loads the {@link TmaMediaItem} tree of json asset files. Each file is compiled once into a
+ * {@link TmaCatalog} that later loads simply memory map. A catalog packaged in the assets (with
+ * the ".tmac" extension instead of ".json") is used directly, otherwise the compiled catalog is
+ * kept in the cache directory until the apk is updated. With the
+ * {@link TmaCatalogStore#COMPACT} pref, each file is instead parsed into a
+ * {@link TmaCompactCatalog}. Files that are parsed whole can have the children of their root
+ * parsed on several threads, see {@link TmaPrefs#mLoaderThreads}.
+ */
 public class TmaLoader {
 
+    private static final String TAG = "TmaLoader";
+
+    private static final String JSON_EXTENSION = ".json";
+    /** Catalogs are stored uncompressed in the apk so that they can be mapped, see Android.mk. */
+    private static final String CATALOG_EXTENSION = ".tmac";
+    private static final String CATALOGS_DIR = "catalogs";
+    private static final String MEDIA_ID_INDEX_FILE = "media_id_index";
+
     private final Context mContext;
+    private final TmaPrefs mPrefs;
     private final TmaMediaItemReader mMediaItemReader = TmaMediaItemReader.getInstance();
+    /** Identifies the version of the json assets the cached catalogs were compiled from. */
+    private final long mSourceStamp;
+    /** The pools by thread count, kept until {@link #release} as loads might still use them. */
+    private final Map<Integer, ForkJoinPool> mPools = new HashMap<>();
+    private boolean mReleased;
 
     public TmaLoader(Context context) {
         mContext = context;
+        mPrefs = TmaPrefs.getInstance(context);
+        mSourceStamp = getApkUpdateTime(context);
     }
 
+    /**
+     * Returns the root of the given json asset. The items are decoded from the file's compiled
+     * catalog as they are reached, or streamed from the json if the catalog is unavailable.
+     */
+    @Nullable
     public TmaMediaItem loadAssetFile(String filePath) {
-        return mMediaItemReader.fromJson(TmaLoaderUtils.jsonFromAsset(mContext, filePath));
+        long startMs = SystemClock.elapsedRealtime();
+        try {
+            if (TmaCatalogStore.COMPACT.equals(mPrefs.mCatalogStore.getValue())) {
+                TmaCompactCatalog catalog = loadCompactCatalog(filePath);
+                if (catalog != null) return catalog.getRoot();
+            }
+            TmaCatalog catalog = openCatalog(filePath);
+            return (catalog != null) ? catalog.getRoot() : loadJsonAsset(filePath);
+        } finally {
+            Log.d(TAG, "Loaded " + filePath + " in "
+                    + (SystemClock.elapsedRealtime() - startMs) + "ms");
+        }
+    }
+
+    /**
+     * Returns the index of the files containing each media id reachable from the given root
+     * files. The index is stored in the cache directory, and only rebuilt (by skimming all the
+     * reachable json files) after the apk is updated. The files are skimmed level by level (the
+     * root files, then the files they include...), the files of a level concurrently when
+     * {@link TmaPrefs#mLoaderThreads} allows it, and merged in order.
+     */
+    public TmaMediaIdIndex loadMediaIdIndex(Collection<String> rootFilePaths) {
+        File file = new File(mContext.getCacheDir(), MEDIA_ID_INDEX_FILE);
+        TmaMediaIdIndex index = TmaMediaIdIndex.read(file);
+        if (index != null && index.getSourceStamp() == mSourceStamp) {
+            return index;
+        }
+
+        long startMs = SystemClock.elapsedRealtime();
+        List<String> filePaths = new ArrayList<>();
+        Map<String, String> filePathsByMediaId = new HashMap<>();
+        Set<String> visited = new HashSet<>();
+        List<String> level = new ArrayList<>(rootFilePaths);
+        while (!level.isEmpty()) {
+            List<String> toVisit = new ArrayList<>(level.size());
+            for (String filePath : level) {
+                if (filePath != null && visited.add(filePath)) {
+                    toVisit.add(filePath);
+                }
+            }
+            List<SkimmedFile> skimmedFiles = skimFiles(toVisit);
+            level = new ArrayList<>();
+            for (int i = 0; i < toVisit.size(); i++) {
+                SkimmedFile skimmed = skimmedFiles.get(i);
+                if (skimmed == null) continue;
+                for (String mediaId : skimmed.mMediaIds) {
+                    filePathsByMediaId.putIfAbsent(mediaId, toVisit.get(i));
+                }
+                filePaths.add(toVisit.get(i));
+                level.addAll(skimmed.mIncludes);
+            }
+        }
+        index = new TmaMediaIdIndex(mSourceStamp, filePaths, filePathsByMediaId);
+        index.write(file);
+        Log.d(TAG, "Indexed " + filePathsByMediaId.size() + " media ids from "
+                + filePaths.size() + " files in " + (SystemClock.elapsedRealtime() - startMs)
+                + "ms");
+        return index;
+    }
+
+    /** The media ids of a json file, and the files it includes. */
+    private static final class SkimmedFile {
+        final Set<String> mMediaIds;
+        final List<String> mIncludes;
+
+        SkimmedFile(Set<String> mediaIds, List<String> includes) {
+            mMediaIds = mediaIds;
+            mIncludes = includes;
+        }
+    }
+
+    /** Returns the skimmed files in order, null for the files that couldn't be skimmed. */
+    private List<SkimmedFile> skimFiles(List<String> filePaths) {
+        List<SkimmedFile> result = new ArrayList<>(filePaths.size());
+        ForkJoinPool pool = getPool();
+        if (pool == null || filePaths.size() < 2) {
+            for (String filePath : filePaths) {
+                result.add(skimFile(filePath));
+            }
+            return result;
+        }
+        List<Callable<SkimmedFile>> tasks = new ArrayList<>(filePaths.size());
+        for (String filePath : filePaths) {
+            tasks.add(() -> skimFile(filePath));
+        }
+        List<Future<SkimmedFile>> futures;
+        try {
+            futures = pool.invokeAll(tasks);
+        } catch (RejectedExecutionException e) {
+            // The loader was released.
+            for (String filePath : filePaths) {
+                result.add(skimFile(filePath));
+            }
+            return result;
+        }
+        for (Future<SkimmedFile> future : futures) {
+            try {
+                result.add(future.get());
+            } catch (ExecutionException | InterruptedException e) {
+                Log.e(TAG, "Failed to skim: " + filePaths.get(result.size()) + " e: " + e);
+                result.add(null);
+            }
+        }
+        return result;
+    }
+
+    @Nullable
+    private SkimmedFile skimFile(String filePath) {
+        JsonReader reader = TmaLoaderUtils.readerFromAsset(mContext, filePath);
+        if (reader == null) return null;
+        try {
+            List<String> includes = new ArrayList<>();
+            return new SkimmedFile(mMediaItemReader.readMediaIds(reader, includes), includes);
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Failed to index: " + filePath + " e: " + e);
+            return null;
+        } finally {
+            TmaLoaderUtils.close(reader);
+        }
+    }
+
+    /**
+     * Returns the pool parsing the json files, or null if they must be parsed on the calling
+     * thread: with the {@link TmaPrefs#mLoaderThreads} default, on a single core or once
+     * released. The pool can still reject the tasks if the loader is released meanwhile.
+     */
+    @Nullable
+    private synchronized ForkJoinPool getPool() {
+        int threadCount = Math.min(mPrefs.mLoaderThreads.getValue().mThreadCount,
+                Runtime.getRuntime().availableProcessors());
+        if (threadCount <= 1 || mReleased) return null;
+        ForkJoinPool pool = mPools.get(threadCount);
+        if (pool == null) {
+            pool = new ForkJoinPool(threadCount);
+            mPools.put(threadCount, pool);
+        }
+        return pool;
+    }
+
+    /** Shuts the pools down, the files are then parsed on the calling thread. */
+    public synchronized void release() {
+        mReleased = true;
+        for (ForkJoinPool pool : mPools.values()) {
+            pool.shutdown();
+        }
+        mPools.clear();
+    }
+
+    /**
+     * Reads the given json asset into a {@link TmaMediaItem} tree. The asset is memory mapped
+     * (json assets are stored uncompressed, see Android.mk), and only the first level of children
+     * is created until the tree is browsed.
+     */
+    @Nullable
+    private TmaMediaItem loadJsonAsset(String filePath) {
+        ByteBuffer json = TmaLoaderUtils.mapAsset(mContext, filePath);
+        if (json == null) {
+            Log.w(TAG, "Can't map: " + filePath + ", reading it in memory");
+            json = TmaLoaderUtils.readAssetBytes(mContext, filePath);
+            if (json == null) return null;
+        }
+        try {
+            return mMediaItemReader.fromJsonLazily(json);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            Log.e(TAG, "Failed to parse: " + filePath + " e: " + e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private TmaCompactCatalog loadCompactCatalog(String filePath) {
+        ForkJoinPool pool = getPool();
+        if (pool != null) {
+            String json = TmaLoaderUtils.readAsset(mContext, filePath);
+            if (json == null) return null;
+            try {
+                return TmaCompactCatalog.fromJson(json, pool);
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                Log.e(TAG, "Failed to parse: " + filePath + " e: " + e);
+                return null;
+            } catch (RejectedExecutionException e) {
+                // The loader was released, the file is parsed below.
+            }
+        }
+
+        JsonReader reader = TmaLoaderUtils.readerFromAsset(mContext, filePath);
+        if (reader == null) return null;
+        try {
+            return TmaCompactCatalog.fromJson(reader);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            Log.e(TAG, "Failed to parse: " + filePath + " e: " + e);
+            return null;
+        } finally {
+            TmaLoaderUtils.close(reader);
+        }
+    }
+
+    @Nullable
+    private TmaCatalog openCatalog(String filePath) {
+        String catalogPath = filePath.endsWith(JSON_EXTENSION)
+                ? filePath.substring(0, filePath.length() - JSON_EXTENSION.length())
+                        + CATALOG_EXTENSION
+                : filePath + CATALOG_EXTENSION;
+
+        ByteBuffer buffer = TmaLoaderUtils.mapAsset(mContext, catalogPath);
+        if (buffer != null && TmaCatalog.isSupported(buffer)) {
+            return new TmaCatalog(buffer);
+        }
+
+        File file = new File(new File(mContext.getCacheDir(), CATALOGS_DIR), catalogPath);
+        TmaCatalog catalog = mapCatalogFile(file);
+        if (catalog == null && compileCatalog(filePath, file)) {
+            catalog = mapCatalogFile(file);
+        }
+        return catalog;
+    }
+
+    /** Returns the catalog stored in the file, or null if it is missing or out of date. */
+    @Nullable
+    private TmaCatalog mapCatalogFile(File file) {
+        ByteBuffer buffer = TmaLoaderUtils.mapFile(file);
+        if (buffer == null || !TmaCatalog.isSupported(buffer)) return null;
+        TmaCatalog catalog = new TmaCatalog(buffer);
+        return (catalog.getSourceStamp() == mSourceStamp) ? catalog : null;
+    }
+
+    private boolean compileCatalog(String filePath, File file) {
+        // With a pool, the whole file is read so that its children can be split among threads.
+        ForkJoinPool pool = getPool();
+        String json = (pool != null) ? TmaLoaderUtils.readAsset(mContext, filePath) : null;
+        JsonReader reader = (json == null) ? TmaLoaderUtils.readerFromAsset(mContext, filePath)
+                : null;
+        if (json == null && reader == null) return false;
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            TmaCatalogWriter writer = new TmaCatalogWriter();
+            boolean read = (json != null) ? writer.readJson(json, pool) : writer.readJson(reader);
+            if (!read) return false;
+
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                Log.e(TAG, "Failed to create: " + dir);
+                return false;
+            }
+            stream = new FileOutputStream(tmpFile);
+            writer.write(stream, mSourceStamp);
+            stream.getFD().sync();
+            TmaLoaderUtils.close(stream);
+            stream = null;
+            return tmpFile.renameTo(file);
+        } catch (IOException | IllegalStateException | NumberFormatException
+                | RejectedExecutionException e) {
+            Log.e(TAG, "Failed to compile: " + filePath + " e: " + e);
+            return false;
+        } finally {
+            TmaLoaderUtils.close(reader);
+            TmaLoaderUtils.close(stream);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Drops the metadata built for the replies from the metadata of the loaded files, returns
+     * how many were dropped.
+     */
+    public static int releaseMetadataCache() {
+        return TmaMetadataStore.releaseCache();
+    }
+
+    private static long getApkUpdateTime(Context context) {
+        try {
+            return context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Package not found: " + e);
+            return 0;
+        }
     }
 }
@@ -17,19 +17,23 @@
 package com.android.car.media.testmediaapp.loader;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -39,88 +43,172 @@ class TmaLoaderUtils {
 
     private static final String TAG = "TmaLoaderUtils";
 
-    /** The default buffer size to use to read files. */
-    private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
     private static final String[] NO_STRINGS = {};
 
     private TmaLoaderUtils() {
     }
 
+    /**
+     * Returns a {@link JsonReader} streaming the given asset, or null if the asset can't be opened.
+     * The caller must close the reader.
+     */
     @Nullable
-    static JSONObject jsonFromAsset(Context context, String assetPathName) {
-        String jsonString = stringFromAsset(context, assetPathName);
+    static JsonReader readerFromAsset(Context context, String assetPathName) {
         try {
-            return (jsonString != null) ? new JSONObject(jsonString) : null;
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to convert to json object: " + e);
+            InputStream stream = context.getAssets().open(assetPathName);
+            if (stream == null) {
+                return null;
+            }
+            return new JsonReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.e(TAG, "failed to open asset: " + assetPathName + " e: " + e);
             return null;
         }
     }
 
-    /** Returns a map from the enum value names to the enum values. */
-    static <T extends Enum> Map<String, T> enumNamesToValues(T[] values) {
-        Map<String, T> result = new HashMap<>();
-        for (T val : values) {
-            result.put(val.name(), val);
+    /** Returns the whole content of the given asset, or null if the asset can't be read. */
+    @Nullable
+    static String readAsset(Context context, String assetPathName) {
+        InputStreamReader reader = null;
+        try {
+            reader = new InputStreamReader(context.getAssets().open(assetPathName),
+                    StandardCharsets.UTF_8);
+            StringBuilder result = new StringBuilder();
+            char[] buffer = new char[8192];
+            for (int count = reader.read(buffer); count >= 0; count = reader.read(buffer)) {
+                result.append(buffer, 0, count);
+            }
+            return result.toString();
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read asset: " + assetPathName + " e: " + e);
+            return null;
+        } finally {
+            close(reader);
         }
-        return result;
     }
 
-    /** Returns the enum value mapped to the name of the given key, or fallback if missing. */
+    /**
+     * Memory maps the given asset, or returns null if the asset is missing or compressed in the
+     * apk (compressed assets can't be opened as file descriptors).
+     */
     @Nullable
-    static <K extends Enum, E extends Enum> E getEnum(
-            JSONObject json, K key, Map<String, E> enumMap, E fallback) {
-        E result = enumMap.get(getString(json, key));
-        return (result != null) ? result : fallback;
+    static ByteBuffer mapAsset(Context context, String assetPathName) {
+        AssetFileDescriptor descriptor = null;
+        FileInputStream stream = null;
+        try {
+            descriptor = context.getAssets().openFd(assetPathName);
+            stream = descriptor.createInputStream();
+            return stream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    descriptor.getStartOffset(), descriptor.getLength());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            close(stream);
+            close(descriptor);
+        }
     }
 
-    /** Returns the array mapped to the name of the given key, or null if missing. */
+    /**
+     * Returns the whole content of the given asset in a heap buffer, or null if the asset can't be
+     * read. For the assets that can't be mapped.
+     */
     @Nullable
-    static <T extends Enum> JSONArray getArray(JSONObject json, T key) {
+    static ByteBuffer readAssetBytes(Context context, String assetPathName) {
+        InputStream stream = null;
         try {
-            return json.has(key.name()) ? json.getJSONArray(key.name()) : null;
-        } catch (JSONException e) {
-            Log.e(TAG, "JSONException getting array for: " + key + " e: " + e);
+            stream = context.getAssets().open(assetPathName);
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int count = stream.read(buffer); count >= 0; count = stream.read(buffer)) {
+                result.write(buffer, 0, count);
+            }
+            return ByteBuffer.wrap(result.toByteArray());
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read asset: " + assetPathName + " e: " + e);
             return null;
+        } finally {
+            close(stream);
         }
     }
 
-    /** Returns the array mapped to the name of the given key, or empty if missing. */
-    static <T extends Enum, U extends Enum> List<U> getEnumArray(JSONObject json, T key,
-            Map<String, U> enumMap) {
-        try {
-            JSONArray array = json.has(key.name()) ? json.getJSONArray(key.name()) : null;
-            int count = (array != null) ? array.length() : 0;
-            List<U> result = new ArrayList<>(count);
-            for (int i = 0; i < count; i++) {
-                result.add(enumMap.get(array.getString(i)));
+    /** Returns a stream of the remaining bytes of the given buffer, which it then consumes. */
+    static InputStream asStream(ByteBuffer buffer) {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
             }
-            return result;
-        } catch (JSONException e) {
-            Log.e(TAG, "JSONException getting array for: " + key + " e: " + e);
-            return new ArrayList<>();
-        }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (length == 0) return 0;
+                if (!buffer.hasRemaining()) return -1;
+                int count = Math.min(length, buffer.remaining());
+                buffer.get(bytes, offset, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        };
     }
 
-    /** Returns the string mapped to the name of the given key, or null if missing. */
+    /** Memory maps the given file, or returns null if it can't be read. */
     @Nullable
-    static <T extends Enum> String getString(JSONObject json, T key) {
+    static ByteBuffer mapFile(File file) {
+        if (!file.isFile()) return null;
+        FileInputStream stream = null;
         try {
-            return json.has(key.name()) ? json.getString(key.name()) : null;
-        } catch (JSONException e) {
-            Log.e(TAG, "JSONException getting string for: " + key + " e: " + e);
+            stream = new FileInputStream(file);
+            FileChannel channel = stream.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            Log.e(TAG, "failed to map file: " + file + " e: " + e);
             return null;
+        } finally {
+            close(stream);
         }
     }
 
-    /** Returns the integer mapped to the name of the given key, or 0 if missing. */
-    static <T extends Enum> int getInt(JSONObject json, T key) {
-        try {
-            return json.has(key.name()) ? json.getInt(key.name()) : 0;
-        } catch (JSONException e) {
-            Log.e(TAG, "JSONException getting int for: " + key + " e: " + e);
-            return 0;
+    /** Returns a map from the enum value names to the enum values. */
+    static <T extends Enum> Map<String, T> enumNamesToValues(T[] values) {
+        Map<String, T> result = new HashMap<>();
+        for (T val : values) {
+            result.put(val.name(), val);
+        }
+        return result;
+    }
+
+    /** Returns the enum value mapped to the next string, or fallback if missing. */
+    @Nullable
+    static <E extends Enum> E nextEnum(JsonReader reader, Map<String, E> enumMap, E fallback)
+            throws IOException {
+        E result = enumMap.get(nextString(reader));
+        return (result != null) ? result : fallback;
+    }
+
+    /** Returns the enum values mapped to the strings of the next array. */
+    static <E extends Enum> List<E> nextEnumArray(JsonReader reader, Map<String, E> enumMap)
+            throws IOException {
+        List<E> result = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            result.add(enumMap.get(reader.nextString()));
+        }
+        reader.endArray();
+        return result;
+    }
+
+    /** Returns the next string, or null if the next value is a json null. */
+    @Nullable
+    static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
         }
+        return reader.nextString();
     }
 
     /** Takes a | separated list of flags and turns it into a bitfield value. */
@@ -138,38 +226,7 @@ class TmaLoaderUtils {
         return result;
     }
 
-    private static void copy(InputStream input, OutputStream output) throws IOException {
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-        int n;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-        }
-    }
-
-    private static byte[] toByteArray(InputStream input) throws IOException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        copy(input, output);
-        return output.toByteArray();
-    }
-
-    @Nullable
-    private static String stringFromAsset(Context context, String assetPathName) {
-        InputStream stream = null;
-        try {
-            stream = context.getAssets().open(assetPathName);
-            if (stream == null) {
-                return null;
-            }
-            return new String(toByteArray(stream));
-        } catch (IOException e) {
-            Log.e(TAG, "failed to load string from asset: " + e);
-            return null;
-        } finally {
-            close(stream);
-        }
-    }
-
-    private static void close(@Nullable Closeable closeable) {
+    static void close(@Nullable Closeable closeable) {
         if (closeable == null) {
             return;
         }
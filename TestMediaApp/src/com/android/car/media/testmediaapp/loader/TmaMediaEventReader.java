@@ -17,21 +17,17 @@
 package com.android.car.media.testmediaapp.loader;
 
 import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.enumNamesToValues;
-import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.getEnum;
-import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.getInt;
-import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.getString;
+import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.nextEnum;
+import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.nextString;
 
-import android.util.Log;
-
-import androidx.annotation.Nullable;
+import android.util.JsonReader;
 
 import com.android.car.media.testmediaapp.TmaMediaEvent;
 import com.android.car.media.testmediaapp.TmaMediaEvent.EventState;
 import com.android.car.media.testmediaapp.TmaMediaEvent.ResolutionIntent;
 import com.android.car.media.testmediaapp.TmaMediaEvent.StateErrorCode;
 
-import org.json.JSONObject;
-
+import java.io.IOException;
 import java.util.Map;
 
 /**
@@ -58,6 +54,13 @@ class TmaMediaEventReader {
         THROW_EXCEPTION
     }
 
+    /** Creates the objects read by {@link #read}, matches the {@link TmaMediaEvent} constructor. */
+    interface EventFactory<E> {
+        E create(EventState state, StateErrorCode errorCode, String errorMessage,
+                String actionLabel, ResolutionIntent resolutionIntent, int postDelayMs,
+                String exceptionClass);
+    }
+
     private static TmaMediaEventReader sInstance;
 
     synchronized static TmaMediaEventReader getInstance() {
@@ -67,26 +70,62 @@ class TmaMediaEventReader {
         return sInstance;
     }
 
+    private final Map<String, Keys> mKeys;
     private final Map<String, EventState> mEventStates;
     private final Map<String, StateErrorCode> mErrorCodes;
     private final Map<String, ResolutionIntent> mResolutionIntents;
 
     private TmaMediaEventReader() {
+        mKeys = enumNamesToValues(Keys.values());
         mEventStates = enumNamesToValues(EventState.values());
         mErrorCodes = enumNamesToValues(StateErrorCode.values());
         mResolutionIntents = enumNamesToValues(ResolutionIntent.values());
     }
 
-    @Nullable
-    TmaMediaEvent fromJson(@Nullable JSONObject json) {
-        if (json == null) return null;
-        return new TmaMediaEvent(
-                getEnum(json, Keys.STATE, mEventStates, EventState.NONE),
-                getEnum(json, Keys.ERROR_CODE, mErrorCodes, StateErrorCode.UNKNOWN_ERROR),
-                getString(json, Keys.ERROR_MESSAGE),
-                getString(json, Keys.ACTION_LABEL),
-                getEnum(json, Keys.INTENT, mResolutionIntents, ResolutionIntent.NONE),
-                getInt(json, Keys.POST_DELAY_MS),
-                getString(json, Keys.THROW_EXCEPTION));
+    /** Reads the next json object of the given reader and passes its values to the factory. */
+    <E> E read(JsonReader reader, EventFactory<E> factory) throws IOException {
+        EventState state = EventState.NONE;
+        StateErrorCode errorCode = StateErrorCode.UNKNOWN_ERROR;
+        String errorMessage = null;
+        String actionLabel = null;
+        ResolutionIntent resolutionIntent = ResolutionIntent.NONE;
+        int postDelayMs = 0;
+        String exceptionClass = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            Keys key = mKeys.get(reader.nextName());
+            if (key == null) {
+                reader.skipValue();
+                continue;
+            }
+            switch (key) {
+                case STATE:
+                    state = nextEnum(reader, mEventStates, EventState.NONE);
+                    break;
+                case ERROR_CODE:
+                    errorCode = nextEnum(reader, mErrorCodes, StateErrorCode.UNKNOWN_ERROR);
+                    break;
+                case ERROR_MESSAGE:
+                    errorMessage = nextString(reader);
+                    break;
+                case ACTION_LABEL:
+                    actionLabel = nextString(reader);
+                    break;
+                case INTENT:
+                    resolutionIntent = nextEnum(reader, mResolutionIntents, ResolutionIntent.NONE);
+                    break;
+                case POST_DELAY_MS:
+                    postDelayMs = reader.nextInt();
+                    break;
+                case THROW_EXCEPTION:
+                    exceptionClass = nextString(reader);
+                    break;
+            }
+        }
+        reader.endObject();
+
+        return factory.create(state, errorCode, errorMessage, actionLabel, resolutionIntent,
+                postDelayMs, exceptionClass);
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp.loader;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps every media id reachable from the root files (directly or through includes) to the asset
+ * file that contains it, so that an item can be found after process death without browsing back
+ * to it. The position of the item inside the file is given by the file's own
+ * {@link com.android.car.media.testmediaapp.TmaMediaItem.DescendantIndex}.
+ */
+public class TmaMediaIdIndex {
+
+    private static final String TAG = "TmaMediaIdIndex";
+
+    private static final int MAGIC = 0x544d4149; // "TMAI"
+    private static final int VERSION = 1;
+
+    private final long mSourceStamp;
+    private final List<String> mFilePaths;
+    private final Map<String, String> mFilePathsByMediaId;
+
+    TmaMediaIdIndex(long sourceStamp, List<String> filePaths,
+            Map<String, String> filePathsByMediaId) {
+        mSourceStamp = sourceStamp;
+        mFilePaths = filePaths;
+        mFilePathsByMediaId = filePathsByMediaId;
+    }
+
+    /** Returns the path of the asset file containing the given media id, or null if unknown. */
+    @Nullable
+    public String getFilePath(String mediaId) {
+        return mFilePathsByMediaId.get(mediaId);
+    }
+
+    long getSourceStamp() {
+        return mSourceStamp;
+    }
+
+    /** Returns the index stored in the given file, or null if it is missing or corrupted. */
+    @Nullable
+    static TmaMediaIdIndex read(File file) {
+        if (!file.isFile()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            long sourceStamp = in.readLong();
+
+            int fileCount = in.readInt();
+            List<String> filePaths = new ArrayList<>(fileCount);
+            for (int i = 0; i < fileCount; i++) {
+                filePaths.add(in.readUTF());
+            }
+            int idCount = in.readInt();
+            Map<String, String> filePathsByMediaId = new HashMap<>(idCount * 4 / 3 + 1);
+            for (int i = 0; i < idCount; i++) {
+                String mediaId = in.readUTF();
+                filePathsByMediaId.put(mediaId, filePaths.get(in.readInt()));
+            }
+            return new TmaMediaIdIndex(sourceStamp, filePaths, filePathsByMediaId);
+        } catch (IOException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "Failed to read: " + file + " e: " + e);
+            return null;
+        } finally {
+            TmaLoaderUtils.close(in);
+        }
+    }
+
+    /** Writes the index to the given file, replacing it atomically. */
+    void write(File file) {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(tmpFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mSourceStamp);
+
+            Map<String, Integer> fileIndexes = new HashMap<>(mFilePaths.size());
+            out.writeInt(mFilePaths.size());
+            for (String filePath : mFilePaths) {
+                fileIndexes.put(filePath, fileIndexes.size());
+                out.writeUTF(filePath);
+            }
+            out.writeInt(mFilePathsByMediaId.size());
+            for (Map.Entry<String, String> entry : mFilePathsByMediaId.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(fileIndexes.get(entry.getValue()));
+            }
+            out.flush();
+            stream.getFD().sync();
+            TmaLoaderUtils.close(stream);
+            stream = null;
+            if (!tmpFile.renameTo(file)) {
+                Log.e(TAG, "Failed to rename: " + tmpFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write: " + file + " e: " + e);
+        } finally {
+            TmaLoaderUtils.close(stream);
+            tmpFile.delete();
+        }
+    }
+}
@@ -21,28 +21,41 @@ import static android.support.v4.media.MediaBrowserCompat.MediaItem.FLAG_PLAYABL
 
 import static com.android.car.media.testmediaapp.TmaMediaEvent.INSTANT_PLAYBACK;
 import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.enumNamesToValues;
-import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.getArray;
-import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.getEnum;
-import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.getEnumArray;
-import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.getString;
+import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.nextEnum;
+import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.nextEnumArray;
+import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.nextString;
 
+import android.util.JsonReader;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
 import com.android.car.media.testmediaapp.TmaMediaEvent;
+import com.android.car.media.testmediaapp.TmaMediaEvent.EventState;
+import com.android.car.media.testmediaapp.TmaMediaEvent.ResolutionIntent;
+import com.android.car.media.testmediaapp.TmaMediaEvent.StateErrorCode;
 import com.android.car.media.testmediaapp.TmaMediaItem.TmaCustomAction;
 import com.android.car.media.testmediaapp.TmaMediaItem;
 import com.android.car.media.testmediaapp.TmaMediaItem.ContentStyle;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 class TmaMediaItemReader {
@@ -61,6 +74,17 @@ class TmaMediaItemReader {
         EVENTS
     }
 
+    /** Creates the objects read by {@link #read}, matches the {@link TmaMediaItem} constructor. */
+    interface ItemFactory<T, E> {
+        T create(int flags, ContentStyle playableStyle, ContentStyle browsableStyle,
+                TmaMediaItem.Metadata metadata, List<TmaCustomAction> customActions,
+                List<E> mediaEvents, @Nullable List<T> children, String include);
+    }
+
+    private static final int[] NO_PATH = {};
+    /** Below this, a part of the children array is parsed by a single task. */
+    private static final int MIN_CHUNK_CHARS = 16 * 1024;
+
     private static TmaMediaItemReader sInstance;
 
     synchronized static TmaMediaItemReader getInstance() {
@@ -72,6 +96,7 @@ class TmaMediaItemReader {
 
     private final TmaMediaMetadataReader mMediaMetadataReader;
     private final TmaMediaEventReader mMediaEventReader;
+    private final Map<String, Keys> mKeys;
     private final Map<String, Integer> mFlags = new HashMap<>(2);
     private final Map<String, ContentStyle> mContentStyles;
     private final Map<String, TmaCustomAction> mCustomActions;
@@ -79,6 +104,7 @@ class TmaMediaItemReader {
     private TmaMediaItemReader() {
         mMediaMetadataReader = TmaMediaMetadataReader.getInstance();
         mMediaEventReader = TmaMediaEventReader.getInstance();
+        mKeys = enumNamesToValues(Keys.values());
         mContentStyles = enumNamesToValues(ContentStyle.values());
         mCustomActions = enumNamesToValues(TmaMediaItem.TmaCustomAction.values());
 
@@ -86,39 +112,735 @@ class TmaMediaItemReader {
         mFlags.put("playable", FLAG_PLAYABLE);
     }
 
+    /**
+     * Reads the root item of the given json file but only reads the children of an item the
+     * first time they are needed, by reading the file from their byte offset. A single scan of the
+     * file records where the children of each item start and which item has each media id, so
+     * that any item can be found without reading the rest of the file. The buffer should be
+     * memory mapped, so that reading it from an offset is a seek. Returns null if the root object
+     * has no metadata.
+     */
     @Nullable
-    TmaMediaItem fromJson(@Nullable JSONObject json) {
-        if (json == null) return null;
+    TmaMediaItem fromJsonLazily(ByteBuffer json) throws IOException {
+        ItemLayout layout = ItemLayout.scan(json);
+        LazyItemFactory factory = new LazyItemFactory(json, layout);
+        TmaMediaItem result = read(newReader(json, 0), factory.forItem(0), TmaMediaEvent::new,
+                factory.mMetadataStore, 0);
+        if (result != null) {
+            result.setDescendantIndex(layout::getPath);
+            // Creates the first level of children right away, like the other loaders.
+            result.getChildren();
+        }
+        return result;
+    }
+
+    /** Returns a reader of the given json file from the given byte offset. */
+    private static JsonReader newReader(ByteBuffer json, int offset) {
+        ByteBuffer buffer = json.duplicate();
+        buffer.position(offset);
+        return new JsonReader(new InputStreamReader(TmaLoaderUtils.asStream(buffer),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates {@link TmaMediaItem}s whose skipped children are read when first needed. The items
+     * are identified by their number in the {@link ItemLayout} of the file rather than by their
+     * media id, which might be missing or duplicated.
+     */
+    private class LazyItemFactory {
+        private final ByteBuffer mJson;
+        private final ItemLayout mLayout;
+        /** Shared by all the items of the file, including the ones read later. */
+        private final TmaMetadataStore mMetadataStore = new TmaMetadataStore();
+
+        LazyItemFactory(ByteBuffer json, ItemLayout layout) {
+            mJson = json;
+            mLayout = layout;
+        }
+
+        /** Returns a factory for the given item, which must be read with a depth of 0. */
+        ItemFactory<TmaMediaItem, TmaMediaEvent> forItem(int item) {
+            return (flags, playableStyle, browsableStyle, metadata, customActions, mediaEvents,
+                    children, include) -> {
+                if (mediaEvents.size() <= 0) {
+                    mediaEvents = Collections.singletonList(INSTANT_PLAYBACK);
+                }
+                return new TmaMediaItem(flags, playableStyle, browsableStyle, metadata,
+                        customActions, mediaEvents, () -> readChildren(item), include);
+            };
+        }
+
+        private List<TmaMediaItem> readChildren(int item) {
+            int offset = mLayout.mChildrenOffsets[item];
+            if (offset < 0) return Collections.emptyList();
+
+            try {
+                JsonReader reader = newReader(mJson, offset);
+                List<TmaMediaItem> result = new ArrayList<>();
+                reader.beginArray();
+                int child = mLayout.mFirstChildren[item];
+                while (reader.hasNext()) {
+                    if (child < 0 || child >= mLayout.mCount) {
+                        throw new IllegalStateException("Layout mismatch at: " + child);
+                    }
+                    TmaMediaItem read = read(reader, forItem(child), TmaMediaEvent::new,
+                            mMetadataStore, 0);
+                    if (read != null) {
+                        result.add(read);
+                    }
+                    child += mLayout.mSubtreeSizes[child];
+                }
+                return result;
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                Log.e(TAG, "Failed to read children of item: " + item + " e: " + e);
+                return Collections.emptyList();
+            }
+        }
+    }
+
+    /**
+     * Where the children of each item of a json file start, and which item has each media id.
+     * The items (the root object and the elements of the children arrays) are numbered in file
+     * order, parents before their children, so the children of an item are found by skipping the
+     * subtrees of their previous siblings. Only the bytes of strings, literals and nesting are
+     * recognized, like with {@link #findRootChildren}, the items are validated when they are read.
+     */
+    private static final class ItemLayout {
+        /** The kinds of the objects and arrays being scanned. */
+        private static final int OTHER = 0;
+        private static final int ITEM = 1;
+        private static final int METADATA = 2;
+        private static final int CHILDREN = 3;
+        /** The index of the items with metadata until the end of their object. */
+        private static final int UNKNOWN_INDEX = -2;
+
+        private static final byte[] METADATA_KEY = Keys.METADATA.name().getBytes(
+                StandardCharsets.UTF_8);
+        private static final byte[] CHILDREN_KEY = Keys.CHILDREN.name().getBytes(
+                StandardCharsets.UTF_8);
+        private static final byte[] MEDIA_ID_KEY =
+                TmaMediaMetadataReader.MetadataKey.MEDIA_ID.name().getBytes(
+                        StandardCharsets.UTF_8);
+
+        /** The byte offset of the children array of each item, or -1 if it has none. */
+        int[] mChildrenOffsets = new int[64];
+        /** The number of the first child of each item, or -1 if it has none. */
+        int[] mFirstChildren = new int[64];
+        /** The number of items in the subtree of each item, including itself. */
+        int[] mSubtreeSizes = new int[64];
+        /** The parent of each item, -1 for the root. */
+        private int[] mParents = new int[64];
+        /**
+         * The index of each item in the children of its parent once read (the items without
+         * metadata are skipped), -1 if it has no metadata.
+         */
+        private int[] mIndexes = new int[64];
+        /** The number of children with metadata of each item, while scanning. */
+        private int[] mReadChildCounts = new int[64];
+        int mCount;
+        /** The first item with each media id. */
+        private final Map<String, Integer> mItemsByMediaId = new HashMap<>();
+
+        /**
+         * Returns the indexes of the children to follow from the root to reach the item with the
+         * given media id, or null if there is no such item, see
+         * {@link TmaMediaItem.DescendantIndex}.
+         */
+        @Nullable
+        int[] getPath(String mediaId) {
+            Integer item = mItemsByMediaId.get(mediaId);
+            if (item == null) return null;
+            int length = 0;
+            for (int i = item; mParents[i] >= 0; i = mParents[i]) {
+                if (mIndexes[i] < 0) return null;
+                length++;
+            }
+            int[] path = new int[length];
+            for (int i = item; mParents[i] >= 0; i = mParents[i]) {
+                path[--length] = mIndexes[i];
+            }
+            return path;
+        }
+
+        static ItemLayout scan(ByteBuffer json) {
+            ItemLayout layout = new ItemLayout();
+            int[] kinds = new int[16];
+            // The item of each object or array, if it is an item or one of its values.
+            int[] items = new int[16];
+            int depth = 0;
+            // The last key read in the innermost item object.
+            byte[] itemKey = null;
+            // Whether the next value of the innermost metadata object is a media id.
+            boolean mediaIdNext = false;
+            int limit = json.limit();
+            for (int i = json.position(); i < limit; i++) {
+                byte c = json.get(i);
+                int kind = (depth > 0) ? kinds[depth - 1] : OTHER;
+                int item = (depth > 0) ? items[depth - 1] : -1;
+                switch (c) {
+                    case '"':
+                        int start = i + 1;
+                        for (i = start; i < limit && json.get(i) != '"'; i++) {
+                            if (json.get(i) == '\\') i++;
+                        }
+                        boolean isKey = isFollowedByColon(json, i + 1);
+                        if (kind == ITEM && isKey) {
+                            itemKey = matches(json, start, i, CHILDREN_KEY) ? CHILDREN_KEY
+                                    : matches(json, start, i, METADATA_KEY) ? METADATA_KEY
+                                    : null;
+                        } else if (kind == METADATA && isKey) {
+                            mediaIdNext = matches(json, start, i, MEDIA_ID_KEY);
+                        } else if (kind == METADATA && mediaIdNext) {
+                            layout.addMediaId(decodeString(json, start, i), item);
+                            mediaIdNext = false;
+                        }
+                        break;
+                    case '{':
+                    case '[':
+                        int pushedKind = OTHER;
+                        int pushedItem = item;
+                        if (c == '{' && (depth == 0 || kind == CHILDREN)) {
+                            pushedKind = ITEM;
+                            pushedItem = layout.add(item);
+                            if (item >= 0 && layout.mFirstChildren[item] < 0) {
+                                layout.mFirstChildren[item] = pushedItem;
+                            }
+                        } else if (kind == ITEM && c == '{' && itemKey == METADATA_KEY) {
+                            pushedKind = METADATA;
+                            layout.mIndexes[item] = UNKNOWN_INDEX;
+                        } else if (kind == ITEM && c == '[' && itemKey == CHILDREN_KEY) {
+                            // The last children array wins, like with JsonReader.
+                            pushedKind = CHILDREN;
+                            layout.mChildrenOffsets[item] = i;
+                            layout.mFirstChildren[item] = -1;
+                            layout.mReadChildCounts[item] = 0;
+                        }
+                        if (depth == kinds.length) {
+                            kinds = Arrays.copyOf(kinds, depth * 2);
+                            items = Arrays.copyOf(items, depth * 2);
+                        }
+                        kinds[depth] = pushedKind;
+                        items[depth] = pushedItem;
+                        depth++;
+                        mediaIdNext = false;
+                        break;
+                    case '}':
+                    case ']':
+                        if (depth == 0) break;
+                        depth--;
+                        if (kind == ITEM) {
+                            layout.close(item);
+                            if (depth == 0) return layout;
+                        }
+                        mediaIdNext = false;
+                        break;
+                    default:
+                        if (kind == METADATA && mediaIdNext && isLiteralStart(c)) {
+                            int end = i;
+                            while (end < limit && isLiteralStart(json.get(end))) end++;
+                            layout.addMediaId(decodeString(json, i, end), item);
+                            mediaIdNext = false;
+                            i = end - 1;
+                        }
+                        break;
+                }
+            }
+            return layout;
+        }
+
+        private int add(int parent) {
+            if (mCount == mChildrenOffsets.length) {
+                int size = mCount * 2;
+                mChildrenOffsets = Arrays.copyOf(mChildrenOffsets, size);
+                mFirstChildren = Arrays.copyOf(mFirstChildren, size);
+                mSubtreeSizes = Arrays.copyOf(mSubtreeSizes, size);
+                mParents = Arrays.copyOf(mParents, size);
+                mIndexes = Arrays.copyOf(mIndexes, size);
+                mReadChildCounts = Arrays.copyOf(mReadChildCounts, size);
+            }
+            mChildrenOffsets[mCount] = -1;
+            mFirstChildren[mCount] = -1;
+            mSubtreeSizes[mCount] = 1;
+            mParents[mCount] = parent;
+            mIndexes[mCount] = -1;
+            mReadChildCounts[mCount] = 0;
+            return mCount++;
+        }
+
+        /** Called at the end of the object of the item, once its metadata is known. */
+        private void close(int item) {
+            mSubtreeSizes[item] = mCount - item;
+            int parent = mParents[item];
+            if (parent >= 0 && mIndexes[item] == UNKNOWN_INDEX) {
+                mIndexes[item] = mReadChildCounts[parent]++;
+            }
+        }
+
+        private void addMediaId(String mediaId, int item) {
+            if (mItemsByMediaId.putIfAbsent(mediaId, item) != null) {
+                Log.e(TAG, "Ignoring item with duplicate media id: " + mediaId);
+            }
+        }
+
+        private static boolean isFollowedByColon(ByteBuffer json, int index) {
+            for (int i = index; i < json.limit(); i++) {
+                byte c = json.get(i);
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return c == ':';
+            }
+            return false;
+        }
+
+        private static boolean isLiteralStart(byte c) {
+            return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+'
+                    || c == '.' || c == 'E';
+        }
+
+        private static boolean matches(ByteBuffer json, int start, int end, byte[] key) {
+            if (end - start != key.length) return false;
+            for (int i = 0; i < key.length; i++) {
+                if (json.get(start + i) != key[i]) return false;
+            }
+            return true;
+        }
+
+        /** Returns the given bytes as a string, with the json escapes decoded. */
+        private static String decodeString(ByteBuffer json, int start, int end) {
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = json.get(start + i);
+            }
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            if (value.indexOf('\\') < 0) return value;
+            JsonReader reader = new JsonReader(new StringReader('"' + value + '"'));
+            reader.setLenient(true);
+            try {
+                return reader.nextString();
+            } catch (IOException | IllegalStateException e) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Skims the next json object of the given reader and returns the media ids of the item and of
+     * its descendants, along with the files they include.
+     */
+    Set<String> readMediaIds(JsonReader reader, Collection<String> includes) throws IOException {
+        Map<String, int[]> idPaths = new HashMap<>();
+        skimIds(reader, NO_PATH, idPaths, includes);
+        return idPaths.keySet();
+    }
+
+    /**
+     * Records the path of the media id of the next json object and of its descendants. The
+     * objects being read are kept on an explicit stack, so that deep trees can't overflow the
+     * thread's stack.
+     */
+    private void skimIds(JsonReader reader, int[] path, Map<String, int[]> idPaths,
+            @Nullable Collection<String> includes) throws IOException {
+        Deque<SkimmedObject> stack = new ArrayDeque<>();
+        reader.beginObject();
+        stack.push(new SkimmedObject(path));
+        while (!stack.isEmpty()) {
+            SkimmedObject object = stack.peek();
+            if (object.mInChildren) {
+                if (reader.hasNext()) {
+                    int[] childPath = Arrays.copyOf(object.mPath, object.mPath.length + 1);
+                    childPath[object.mPath.length] = object.mChildCount++;
+                    reader.beginObject();
+                    stack.push(new SkimmedObject(childPath));
+                } else {
+                    reader.endArray();
+                    object.mInChildren = false;
+                }
+                continue;
+            }
+            if (!reader.hasNext()) {
+                reader.endObject();
+                stack.pop();
+                continue;
+            }
+            Keys key = mKeys.get(reader.nextName());
+            if (key == Keys.METADATA) {
+                String mediaId = mMediaMetadataReader.readMediaId(reader);
+                if (mediaId != null && idPaths.putIfAbsent(mediaId, object.mPath) != null) {
+                    Log.e(TAG, "Ignoring item with duplicate media id: " + mediaId);
+                }
+            } else if (key == Keys.CHILDREN) {
+                reader.beginArray();
+                object.mInChildren = true;
+            } else if (key == Keys.INCLUDE && includes != null) {
+                String include = nextString(reader);
+                if (include != null) {
+                    includes.add(include);
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+    }
+
+    /** A json object being skimmed by {@link #skimIds}. */
+    private static final class SkimmedObject {
+        final int[] mPath;
+        int mChildCount;
+        boolean mInChildren;
+
+        SkimmedObject(int[] path) {
+            mPath = path;
+        }
+    }
+
+    /**
+     * Reads the next json object of the given reader and passes its values to the factories.
+     * Only the given number of levels of descendants are read, the children of the items below
+     * are skipped and passed as null to the item factory. The metadata is added to the given
+     * store. Returns null if the object has no metadata. Children are created before their
+     * parent, in file order. The objects being read are kept on an explicit stack, so that deep
+     * trees can't overflow the thread's stack.
+     */
+    @Nullable
+    <T, E> T read(JsonReader reader, ItemFactory<T, E> itemFactory,
+            TmaMediaEventReader.EventFactory<E> eventFactory, TmaMetadataStore metadataStore,
+            int depth) throws IOException {
+        Deque<ReadObject<T, E>> stack = new ArrayDeque<>();
+        reader.beginObject();
+        stack.push(new ReadObject<>(depth));
+        while (true) {
+            ReadObject<T, E> object = stack.peek();
+            if (object.mInChildren) {
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    stack.push(new ReadObject<>(object.mDepth - 1));
+                } else {
+                    reader.endArray();
+                    object.mInChildren = false;
+                }
+                continue;
+            }
+            if (reader.hasNext()) {
+                readValue(reader, object, eventFactory, metadataStore);
+                continue;
+            }
+
+            reader.endObject();
+            stack.pop();
+            T item = null;
+            if (object.mMetadata == null) {
+                Log.e(TAG, "Ignoring item without " + Keys.METADATA);
+            } else {
+                item = itemFactory.create(object.mFlags, object.mPlayableStyle,
+                        object.mBrowsableStyle, object.mMetadata, object.mCustomActions,
+                        object.mMediaEvents, object.mChildren, object.mInclude);
+            }
+            if (stack.isEmpty()) return item;
+            if (item != null) {
+                stack.peek().mChildren.add(item);
+            }
+        }
+    }
+
+    /**
+     * Reads the next name and value of the given object. Entering its children array only flags
+     * the object, {@link #read} then reads the children.
+     */
+    private <T, E> void readValue(JsonReader reader, ReadObject<T, E> object,
+            TmaMediaEventReader.EventFactory<E> eventFactory, TmaMetadataStore metadataStore)
+            throws IOException {
+        Keys key = mKeys.get(reader.nextName());
+        if (key == null) {
+            reader.skipValue();
+            return;
+        }
+        switch (key) {
+            case FLAGS:
+                object.mFlags = TmaLoaderUtils.parseFlags(nextString(reader), mFlags);
+                break;
+            case PLAYABLE_HINT:
+                object.mPlayableStyle = nextEnum(reader, mContentStyles, ContentStyle.NONE);
+                break;
+            case BROWSABLE_HINT:
+                object.mBrowsableStyle = nextEnum(reader, mContentStyles, ContentStyle.NONE);
+                break;
+            case METADATA:
+                object.mMetadata = mMediaMetadataReader.fromJson(reader, metadataStore);
+                break;
+            case CHILDREN:
+                if (object.mDepth <= 0) {
+                    reader.skipValue();
+                    object.mChildren = null;
+                    break;
+                }
+                object.mChildren = new ArrayList<>();
+                reader.beginArray();
+                object.mInChildren = true;
+                break;
+            case INCLUDE:
+                object.mInclude = nextString(reader);
+                break;
+            case CUSTOM_ACTIONS:
+                object.mCustomActions = nextEnumArray(reader, mCustomActions);
+                break;
+            case EVENTS:
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    object.mMediaEvents.add(mMediaEventReader.read(reader, eventFactory));
+                }
+                reader.endArray();
+                break;
+        }
+    }
+
+    /** The values read so far of a json object being read by {@link #read}. */
+    private static final class ReadObject<T, E> {
+        /** The number of levels of descendants to read. */
+        final int mDepth;
+        int mFlags;
+        ContentStyle mPlayableStyle = ContentStyle.NONE;
+        ContentStyle mBrowsableStyle = ContentStyle.NONE;
+        TmaMediaItem.Metadata mMetadata;
+        List<T> mChildren = Collections.emptyList();
+        String mInclude;
+        List<TmaCustomAction> mCustomActions = Collections.emptyList();
+        final List<E> mMediaEvents = new ArrayList<>();
+        boolean mInChildren;
+
+        ReadObject(int depth) {
+            mDepth = depth;
+        }
+    }
+
+    /**
+     * Reads the json object of the given text like {@link #read} with an unlimited depth, but
+     * parses the children of the root on the given pool: the children array is split in chunks
+     * of roughly {@link #MIN_CHUNK_CHARS} characters, which are parsed concurrently with their
+     * own metadata stores. The factories are then called on the calling thread, children before
+     * their parent as with {@link #read}, so the result doesn't depend on the scheduling. Unlike
+     * with {@link #read}, the events of an item are always created after its children.
+     */
+    @Nullable
+    <T, E> T readParallel(String json, ItemFactory<T, E> itemFactory,
+            TmaMediaEventReader.EventFactory<E> eventFactory, ForkJoinPool pool)
+            throws IOException {
+        int[] spans = (json.length() >= 2 * MIN_CHUNK_CHARS) ? findRootChildren(json) : null;
+        if (spans == null) {
+            return read(new JsonReader(new StringReader(json)), itemFactory, eventFactory,
+                    new TmaMetadataStore(), Integer.MAX_VALUE);
+        }
+
+        // The root is read without its children (skipping them would scan the whole file),
+        // which are parsed by the pool.
+        int arrayStart = json.lastIndexOf('[', spans[0]);
+        int arrayEnd = json.indexOf(']', spans[spans.length - 1]);
+        String rootJson = json.substring(0, arrayStart + 1) + json.substring(arrayEnd);
+        ParsedItem root = read(new JsonReader(new StringReader(rootJson)), ParsedItem::new,
+                ParsedEvent::new, new TmaMetadataStore(), Integer.MAX_VALUE);
+        if (root == null) return null;
         try {
-            // Media events
-            JSONArray events = getArray(json, Keys.EVENTS);
-            int eventsCount = (events != null) ? events.length() : 0;
-            List<TmaMediaEvent> mediaEvents = new ArrayList<>(eventsCount);
-            for (int i = 0; i < eventsCount ; i++) {
-                mediaEvents.add(mMediaEventReader.fromJson(events.getJSONObject(i)));
-            }
-            if (mediaEvents.size() <= 0) {
-                mediaEvents.add(INSTANT_PLAYBACK);
-            }
-
-            // Child items
-            JSONArray children = getArray(json, Keys.CHILDREN);
-            int childrenCount = (children != null) ? children.length() : 0;
-            List<TmaMediaItem> mediaItems = new ArrayList<>(childrenCount);
-            for (int i = 0; i < childrenCount ; i++) {
-                mediaItems.add(fromJson(children.getJSONObject(i)));
-            }
-
-
-            return new TmaMediaItem(TmaLoaderUtils.parseFlags(getString(json, Keys.FLAGS), mFlags),
-                    getEnum(json, Keys.PLAYABLE_HINT, mContentStyles, ContentStyle.NONE),
-                    getEnum(json, Keys.BROWSABLE_HINT, mContentStyles, ContentStyle.NONE),
-                    mMediaMetadataReader.fromJson(json.getJSONObject(Keys.METADATA.name())),
-                    getEnumArray(json, Keys.CUSTOM_ACTIONS, mCustomActions),
-                    mediaEvents, mediaItems, getString(json, Keys.INCLUDE));
-        } catch (JSONException e) {
-            Log.e(TAG, "Json failure: " + e);
-            return null;
+            ParsedItem[] children = pool.invoke(new ParseTask(json, spans, 0, spans.length / 2));
+            root.mChildren = new ArrayList<>(children.length);
+            for (ParsedItem child : children) {
+                if (child != null) {
+                    root.mChildren.add(child);
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return replay(root, itemFactory, eventFactory);
+    }
+
+    /** Parses the children of the root whose spans are in [start, end). */
+    private class ParseTask extends RecursiveTask<ParsedItem[]> {
+        private final String mJson;
+        private final int[] mSpans;
+        private final int mStart;
+        private final int mEnd;
+
+        ParseTask(String json, int[] spans, int start, int end) {
+            mJson = json;
+            mSpans = spans;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected ParsedItem[] compute() {
+            int chars = mSpans[2 * mEnd - 1] - mSpans[2 * mStart];
+            if (mEnd - mStart > 1 && chars > MIN_CHUNK_CHARS) {
+                int middle = (mStart + mEnd) >>> 1;
+                ParseTask second = new ParseTask(mJson, mSpans, middle, mEnd);
+                second.fork();
+                ParsedItem[] first = new ParseTask(mJson, mSpans, mStart, middle).compute();
+                ParsedItem[] result = Arrays.copyOf(first, mEnd - mStart);
+                System.arraycopy(second.join(), 0, result, first.length, mEnd - middle);
+                return result;
+            }
+            ParsedItem[] result = new ParsedItem[mEnd - mStart];
+            TmaMetadataStore metadataStore = new TmaMetadataStore();
+            try {
+                for (int i = mStart; i < mEnd; i++) {
+                    StringReader reader = new StringReader(mJson);
+                    reader.skip(mSpans[2 * i]);
+                    result[i - mStart] = read(new JsonReader(reader), ParsedItem::new,
+                            ParsedEvent::new, metadataStore, Integer.MAX_VALUE);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns the start and end offsets of each element of the children array of the root
+     * object, or null if the root has no children array. Only strings and nesting are
+     * recognized, the elements are validated when they are parsed.
+     */
+    @Nullable
+    private static int[] findRootChildren(String json) {
+        int[] spans = null;
+        int count = 0;
+        int nesting = 0;
+        boolean inChildren = false;
+        int elementStart = -1;
+        String lastString = null;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (inChildren && nesting == 2 && elementStart < 0 && !Character.isWhitespace(c)
+                    && c != ',' && c != ']') {
+                elementStart = i;
+            }
+            switch (c) {
+                case '"':
+                    int start = i + 1;
+                    for (i = start; i < json.length() && json.charAt(i) != '"'; i++) {
+                        if (json.charAt(i) == '\\') i++;
+                    }
+                    if (nesting == 1) {
+                        lastString = json.substring(start, Math.min(i, json.length()));
+                    }
+                    break;
+                case '{':
+                case '[':
+                    if (nesting == 1 && c == '[' && Keys.CHILDREN.name().equals(lastString)) {
+                        // The last children array wins, like with JsonReader.
+                        inChildren = true;
+                        spans = new int[16];
+                        count = 0;
+                    }
+                    nesting++;
+                    break;
+                case '}':
+                case ']':
+                case ',':
+                    if (inChildren && nesting == 2 && elementStart >= 0) {
+                        if (count == spans.length) {
+                            spans = Arrays.copyOf(spans, count * 2);
+                        }
+                        spans[count++] = elementStart;
+                        spans[count++] = i;
+                        elementStart = -1;
+                    }
+                    if (c == ',') break;
+                    nesting--;
+                    if (nesting == 1) {
+                        inChildren = false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return (spans != null && count > 0) ? Arrays.copyOf(spans, count) : null;
+    }
+
+    /** Calls the factories with the parsed values, children first, without recursion. */
+    private <T, E> T replay(ParsedItem root, ItemFactory<T, E> itemFactory,
+            TmaMediaEventReader.EventFactory<E> eventFactory) {
+        Deque<ReplayedItem<T>> stack = new ArrayDeque<>();
+        stack.push(new ReplayedItem<>(root));
+        while (true) {
+            ReplayedItem<T> replayed = stack.peek();
+            List<ParsedItem> children = replayed.mParsed.mChildren;
+            if (children != null && replayed.mCreatedChildren.size() < children.size()) {
+                stack.push(new ReplayedItem<>(children.get(replayed.mCreatedChildren.size())));
+                continue;
+            }
+            stack.pop();
+            ParsedItem parsed = replayed.mParsed;
+            List<E> mediaEvents = new ArrayList<>(parsed.mMediaEvents.size());
+            for (ParsedEvent event : parsed.mMediaEvents) {
+                mediaEvents.add(eventFactory.create(event.mState, event.mErrorCode,
+                        event.mErrorMessage, event.mActionLabel, event.mResolutionIntent,
+                        event.mPostDelayMs, event.mExceptionClass));
+            }
+            T item = itemFactory.create(parsed.mFlags, parsed.mPlayableStyle,
+                    parsed.mBrowsableStyle, parsed.mMetadata, parsed.mCustomActions,
+                    mediaEvents, (children != null) ? replayed.mCreatedChildren : null,
+                    parsed.mInclude);
+            if (stack.isEmpty()) return item;
+            stack.peek().mCreatedChildren.add(item);
+        }
+    }
+
+    /** The values passed to {@link ItemFactory#create} by the parse tasks. */
+    private static final class ParsedItem {
+        final int mFlags;
+        final ContentStyle mPlayableStyle;
+        final ContentStyle mBrowsableStyle;
+        final TmaMediaItem.Metadata mMetadata;
+        final List<TmaCustomAction> mCustomActions;
+        final List<ParsedEvent> mMediaEvents;
+        @Nullable
+        List<ParsedItem> mChildren;
+        final String mInclude;
+
+        ParsedItem(int flags, ContentStyle playableStyle, ContentStyle browsableStyle,
+                TmaMediaItem.Metadata metadata, List<TmaCustomAction> customActions,
+                List<ParsedEvent> mediaEvents, @Nullable List<ParsedItem> children,
+                String include) {
+            mFlags = flags;
+            mPlayableStyle = playableStyle;
+            mBrowsableStyle = browsableStyle;
+            mMetadata = metadata;
+            mCustomActions = customActions;
+            mMediaEvents = mediaEvents;
+            mChildren = children;
+            mInclude = include;
+        }
+    }
+
+    /** The values passed to {@link TmaMediaEventReader.EventFactory#create}. */
+    private static final class ParsedEvent {
+        final EventState mState;
+        final StateErrorCode mErrorCode;
+        final String mErrorMessage;
+        final String mActionLabel;
+        final ResolutionIntent mResolutionIntent;
+        final int mPostDelayMs;
+        final String mExceptionClass;
+
+        ParsedEvent(EventState state, StateErrorCode errorCode, String errorMessage,
+                String actionLabel, ResolutionIntent resolutionIntent, int postDelayMs,
+                String exceptionClass) {
+            mState = state;
+            mErrorCode = errorCode;
+            mErrorMessage = errorMessage;
+            mActionLabel = actionLabel;
+            mResolutionIntent = resolutionIntent;
+            mPostDelayMs = postDelayMs;
+            mExceptionClass = exceptionClass;
+        }
+    }
+
+    /** A parsed item whose children are being created by {@link #replay}. */
+    private static final class ReplayedItem<T> {
+        final ParsedItem mParsed;
+        final List<T> mCreatedChildren = new ArrayList<>();
+
+        ReplayedItem(ParsedItem parsed) {
+            mParsed = parsed;
         }
     }
 }
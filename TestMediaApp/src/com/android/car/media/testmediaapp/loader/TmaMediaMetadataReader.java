@@ -51,13 +51,15 @@ import static android.support.v4.media.MediaMetadataCompat.METADATA_KEY_YEAR;
 import static com.android.car.media.testmediaapp.loader.TmaLoaderUtils.enumNamesToValues;
 
 import android.support.v4.media.MediaMetadataCompat;
+import android.util.JsonReader;
 import android.util.Log;
 
-import com.android.car.media.testmediaapp.TmaAssetProvider;
+import androidx.annotation.Nullable;
 
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.android.car.media.testmediaapp.TmaAssetProvider;
+import com.android.car.media.testmediaapp.TmaMediaItem;
 
+import java.io.IOException;
 import java.util.EnumSet;
 import java.util.Map;
 import java.util.Set;
@@ -67,7 +69,7 @@ class TmaMediaMetadataReader {
 
     private final static String TAG = "TmaMetadataReader";
 
-    private enum ValueType {
+    enum ValueType {
         LONG,
         TEXT,
         BITMAP,
@@ -75,7 +77,7 @@ class TmaMediaMetadataReader {
     }
 
     /** The name of each entry is the key used in the json file. */
-    private enum MetadataKey {
+    enum MetadataKey {
         TITLE               (METADATA_KEY_TITLE,                ValueType.TEXT),
         ARTIST              (METADATA_KEY_ARTIST,               ValueType.TEXT),
         DURATION            (METADATA_KEY_DURATION,             ValueType.LONG),
@@ -138,31 +140,54 @@ class TmaMediaMetadataReader {
     }
 
 
-    MediaMetadataCompat fromJson(JSONObject object) throws JSONException {
-        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
-        for (String jsonKey : object.keySet()) {
+    /** Skims the next json object of the given reader and only returns its media id. */
+    @Nullable
+    String readMediaId(JsonReader reader) throws IOException {
+        String result = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (MetadataKey.MEDIA_ID.name().equals(reader.nextName())) {
+                result = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return result;
+    }
+
+    /** Reads the next json object of the given reader into a new row of the given store. */
+    TmaMediaItem.Metadata fromJson(JsonReader reader, TmaMetadataStore store)
+            throws IOException {
+        int row = store.addRow();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String jsonKey = reader.nextName();
             MetadataKey key = mMetadataKeys.get(jsonKey);
             if (key != null) {
                 switch (key.mKeyType) {
                     case LONG:
-                        builder.putLong(key.mLongName, object.getLong(jsonKey));
+                        store.putLong(row, key, reader.nextLong());
                         break;
                     case TEXT:
-                        String value = object.getString(jsonKey);
+                        String value = reader.nextString();
                         if (mUriKeys.contains(key)) {
                             value = TmaAssetProvider.buildUriString(value);
                         }
-                        builder.putString(key.mLongName, value);
+                        store.putString(row, key, value);
                         break;
                     case BITMAP:
                     case RATING:
                         Log.e(TAG, "Ignoring unsupported type: " + key.mKeyType + " for key: "
                         + jsonKey + " / " + key.mLongName);
+                        reader.skipValue();
                 }
             } else {
                 Log.e(TAG, "Ignoring unsupported key: " + jsonKey);
+                reader.skipValue();
             }
         }
-        return builder.build();
+        reader.endObject();
+        return store.getMetadata(row);
     }
 }
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp.loader;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import com.android.car.media.testmediaapp.TmaMediaItem;
+import com.android.car.media.testmediaapp.loader.TmaMediaMetadataReader.MetadataKey;
+import com.android.car.media.testmediaapp.loader.TmaMediaMetadataReader.ValueType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Column-wise store of the metadata read from json files. Each item is a row, and each
+ * {@link MetadataKey} used by the file is a column: the text values are indexes in a pool of
+ * deduplicated strings, and the long values are stored in plain long arrays. The
+ * {@link MediaMetadataCompat} of a row is only built when its item is sent, and the last built
+ * ones are kept in a cache shared by all the stores and by the {@link TmaCatalog}s. Thread safe.
+ */
+class TmaMetadataStore {
+
+    private static final int NO_STRING = -1;
+    private static final long NO_LONG = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 16;
+    /** The items sent in a few browse replies and the queue of the active item. */
+    private static final int MAX_CACHED_METADATA = 512;
+
+    private static final MetadataKey[] KEYS = MetadataKey.values();
+    private static final Map<String, MetadataKey> KEYS_BY_LONG_NAME = new HashMap<>();
+    static {
+        for (MetadataKey key : KEYS) {
+            KEYS_BY_LONG_NAME.put(key.mLongName, key);
+        }
+    }
+
+    /** Keyed by the identity of the lazy metadata. */
+    private static final LruCache<TmaMediaItem.Metadata, MediaMetadataCompat> sMediaMetadataCache =
+            new LruCache<>(MAX_CACHED_METADATA);
+
+    /** Indexed by key ordinal, only the columns of the keys that were used are allocated. */
+    private final int[][] mTextColumns = new int[KEYS.length][];
+    private final long[][] mLongColumns = new long[KEYS.length][];
+    private final Map<String, Integer> mStringIndexes = new HashMap<>();
+    private final List<String> mStrings = new ArrayList<>();
+    private int mRowCount;
+    private int mCapacity = INITIAL_CAPACITY;
+
+    /** Adds an empty row, whose values are then set with the put methods. */
+    synchronized int addRow() {
+        if (mRowCount == mCapacity) {
+            mCapacity *= 2;
+            for (int i = 0; i < KEYS.length; i++) {
+                if (mTextColumns[i] != null) {
+                    mTextColumns[i] = growColumn(mTextColumns[i]);
+                }
+                if (mLongColumns[i] != null) {
+                    mLongColumns[i] = growColumn(mLongColumns[i]);
+                }
+            }
+        }
+        return mRowCount++;
+    }
+
+    synchronized void putString(int row, MetadataKey key, String value) {
+        int[] column = mTextColumns[key.ordinal()];
+        if (column == null) {
+            column = new int[mCapacity];
+            Arrays.fill(column, NO_STRING);
+            mTextColumns[key.ordinal()] = column;
+        }
+        column[row] = addString(value);
+    }
+
+    synchronized void putLong(int row, MetadataKey key, long value) {
+        long[] column = mLongColumns[key.ordinal()];
+        if (column == null) {
+            column = new long[mCapacity];
+            Arrays.fill(column, NO_LONG);
+            mLongColumns[key.ordinal()] = column;
+        }
+        column[row] = value;
+    }
+
+    /** Empties the cache of built metadata, returns how many were cached. */
+    static int releaseCache() {
+        int count = sMediaMetadataCache.size();
+        sMediaMetadataCache.evictAll();
+        return count;
+    }
+
+    /** Returns the cached {@link MediaMetadataCompat} of the metadata, building it if needed. */
+    static MediaMetadataCompat getMediaMetadata(TmaMediaItem.Metadata metadata,
+            Supplier<MediaMetadataCompat> builder) {
+        MediaMetadataCompat result = sMediaMetadataCache.get(metadata);
+        if (result == null) {
+            result = builder.get();
+            sMediaMetadataCache.put(metadata, result);
+        }
+        return result;
+    }
+
+    /** Returns the metadata of the given row. */
+    TmaMediaItem.Metadata getMetadata(int row) {
+        return new Row(row);
+    }
+
+    private int addString(String value) {
+        Integer index = mStringIndexes.get(value);
+        if (index == null) {
+            index = mStrings.size();
+            mStrings.add(value);
+            mStringIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    @Nullable
+    private synchronized String getString(int row, String key) {
+        MetadataKey metadataKey = KEYS_BY_LONG_NAME.get(key);
+        if (metadataKey == null) return null;
+        int[] column = mTextColumns[metadataKey.ordinal()];
+        if (column == null || column[row] == NO_STRING) return null;
+        return mStrings.get(column[row]);
+    }
+
+    private synchronized long getLong(int row, String key) {
+        MetadataKey metadataKey = KEYS_BY_LONG_NAME.get(key);
+        if (metadataKey == null) return 0;
+        long[] column = mLongColumns[metadataKey.ordinal()];
+        if (column == null || column[row] == NO_LONG) return 0;
+        return column[row];
+    }
+
+    private synchronized boolean containsKey(int row, String key) {
+        MetadataKey metadataKey = KEYS_BY_LONG_NAME.get(key);
+        if (metadataKey == null) return false;
+        int[] textColumn = mTextColumns[metadataKey.ordinal()];
+        long[] longColumn = mLongColumns[metadataKey.ordinal()];
+        return (textColumn != null && textColumn[row] != NO_STRING)
+                || (longColumn != null && longColumn[row] != NO_LONG);
+    }
+
+    private synchronized MediaMetadataCompat buildMediaMetadata(int row) {
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
+        for (MetadataKey key : KEYS) {
+            if (key.mKeyType == ValueType.TEXT) {
+                int[] column = mTextColumns[key.ordinal()];
+                if (column != null && column[row] != NO_STRING) {
+                    builder.putString(key.mLongName, mStrings.get(column[row]));
+                }
+            } else if (key.mKeyType == ValueType.LONG) {
+                long[] column = mLongColumns[key.ordinal()];
+                if (column != null && column[row] != NO_LONG) {
+                    builder.putLong(key.mLongName, column[row]);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private int[] growColumn(int[] column) {
+        int[] result = Arrays.copyOf(column, mCapacity);
+        Arrays.fill(result, column.length, mCapacity, NO_STRING);
+        return result;
+    }
+
+    private long[] growColumn(long[] column) {
+        long[] result = Arrays.copyOf(column, mCapacity);
+        Arrays.fill(result, column.length, mCapacity, NO_LONG);
+        return result;
+    }
+
+    /** The metadata of one row, only holds the store and the row index. */
+    private final class Row implements TmaMediaItem.Metadata {
+        private final int mRow;
+
+        Row(int row) {
+            mRow = row;
+        }
+
+        @Nullable
+        @Override
+        public String getString(String key) {
+            return TmaMetadataStore.this.getString(mRow, key);
+        }
+
+        @Nullable
+        @Override
+        public CharSequence getText(String key) {
+            return TmaMetadataStore.this.getString(mRow, key);
+        }
+
+        @Override
+        public long getLong(String key) {
+            return TmaMetadataStore.this.getLong(mRow, key);
+        }
+
+        @Override
+        public boolean containsKey(String key) {
+            return TmaMetadataStore.this.containsKey(mRow, key);
+        }
+
+        @Override
+        public MediaMetadataCompat toMediaMetadata() {
+            return getMediaMetadata(this, () -> buildMediaMetadata(mRow));
+        }
+    }
+}
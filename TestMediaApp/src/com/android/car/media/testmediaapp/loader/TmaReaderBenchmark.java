@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.media.testmediaapp.loader;
+
+import android.os.SystemClock;
+import android.util.JsonReader;
+
+import com.android.car.media.testmediaapp.TmaMediaEvent;
+import com.android.car.media.testmediaapp.TmaMediaItem;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times {@link TmaMediaItemReader} on generated json trees: shallow wide ones, like the asset
+ * files, and single chains thousands of levels deep, like recursive includes could produce.
+ * Each tree is read several times (the first runs warm up the code), both fully and by only
+ * skimming its media ids, and the best time is reported per node. A large tree is then read with
+ * {@link TmaMediaItemReader#readParallel} on pools of 1 to 8 threads, to show how the parallel
+ * loading scales with the cores of the device.
+ */
+public class TmaReaderBenchmark {
+
+    /** Depth and fan out of each tree. */
+    private static final int[][] SHAPES = { { 2, 100 }, { 3, 30 }, { 5000, 1 }, { 20000, 1 } };
+    private static final int RUNS = 5;
+    /** Depth and fan out of the tree read in parallel. */
+    private static final int[] PARALLEL_SHAPE = { 3, 60 };
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+    private static final TmaMediaItemReader.ItemFactory<TmaMediaItem, TmaMediaEvent>
+            OBJECT_GRAPH_FACTORY = (flags, playableStyle, browsableStyle, metadata,
+                    customActions, mediaEvents, children, include) -> new TmaMediaItem(flags,
+                            playableStyle, browsableStyle, metadata, customActions, mediaEvents,
+                            (children != null) ? children : Collections.emptyList(), include);
+
+    private interface Run {
+        void run(JsonReader reader) throws IOException;
+    }
+
+    /** Runs the benchmark, which blocks the calling thread for a few seconds. */
+    public static void dump(PrintWriter writer, String prefix) {
+        TmaMediaItemReader itemReader = TmaMediaItemReader.getInstance();
+        for (int[] shape : SHAPES) {
+            int depth = shape[0];
+            int fanOut = shape[1];
+            int[] nodeCount = new int[1];
+            String json = buildJson(depth, fanOut, nodeCount);
+            writer.println(prefix + "depth: " + depth + " fan out: " + fanOut + " ("
+                    + nodeCount[0] + " nodes):");
+            writer.println(prefix + "  read: " + time(json, nodeCount[0],
+                    reader -> itemReader.read(reader, OBJECT_GRAPH_FACTORY, TmaMediaEvent::new,
+                            new TmaMetadataStore(), Integer.MAX_VALUE)));
+            writer.println(prefix + "  skim ids: " + time(json, nodeCount[0],
+                    reader -> itemReader.readMediaIds(reader, new ArrayList<>())));
+            writer.flush();
+        }
+
+        int[] nodeCount = new int[1];
+        String json = buildJson(PARALLEL_SHAPE[0], PARALLEL_SHAPE[1], nodeCount);
+        writer.println(prefix + "parallel read of " + nodeCount[0] + " nodes, "
+                + Runtime.getRuntime().availableProcessors() + " cores:");
+        writer.println(prefix + "  serial: " + time(json, nodeCount[0],
+                reader -> itemReader.read(reader, OBJECT_GRAPH_FACTORY, TmaMediaEvent::new,
+                        new TmaMetadataStore(), Integer.MAX_VALUE)));
+        for (int threadCount : THREAD_COUNTS) {
+            ForkJoinPool pool = new ForkJoinPool(threadCount);
+            try {
+                writer.println(prefix + "  " + threadCount + " threads: " + time(json,
+                        nodeCount[0], reader -> itemReader.readParallel(json,
+                                OBJECT_GRAPH_FACTORY, TmaMediaEvent::new, pool)));
+            } finally {
+                pool.shutdown();
+            }
+            writer.flush();
+        }
+    }
+
+    private static String time(String json, int nodeCount, Run run) {
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            JsonReader reader = new JsonReader(new StringReader(json));
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            try {
+                run.run(reader);
+            } catch (IOException | RuntimeException | StackOverflowError e) {
+                return "failed: " + e;
+            } finally {
+                TmaLoaderUtils.close(reader);
+            }
+            bestNanos = Math.min(bestNanos, SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+        return (bestNanos / 1000000) + "ms (" + (bestNanos / nodeCount) + "ns per node)";
+    }
+
+    /**
+     * Returns the json of a tree whose browsable items all have fanOut children, down to the
+     * playable items of the given depth. Written without recursion, like it is read.
+     */
+    private static String buildJson(int depth, int fanOut, int[] nodeCount) {
+        StringBuilder json = new StringBuilder();
+        // The number of children left to write at each level.
+        int[] remaining = new int[depth];
+        appendItem(json, nodeCount[0]++, depth > 0);
+        int level = 0;
+        remaining[0] = fanOut;
+        while (level >= 0 && depth > 0) {
+            if (remaining[level] == 0) {
+                json.append("]}");
+                level--;
+                continue;
+            }
+            if (remaining[level]-- < fanOut) {
+                json.append(',');
+            }
+            boolean browsable = level + 1 < depth;
+            appendItem(json, nodeCount[0]++, browsable);
+            if (browsable) {
+                remaining[++level] = fanOut;
+            }
+        }
+        return json.toString();
+    }
+
+    /** Leaves the children array of browsable items open. */
+    private static void appendItem(StringBuilder json, int index, boolean browsable) {
+        json.append("{\"FLAGS\":\"").append(browsable ? "browsable" : "playable")
+                .append("\",\"METADATA\":{\"MEDIA_ID\":\"bench ").append(index)
+                .append("\",\"DISPLAY_TITLE\":\"Item ").append(index).append("\"}");
+        json.append(browsable ? ",\"CHILDREN\":[" : "}");
+    }
+}
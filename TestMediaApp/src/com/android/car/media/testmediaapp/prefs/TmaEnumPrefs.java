@@ -77,13 +77,382 @@ public class TmaEnumPrefs {
         }
     }
 
+    /** Upper bound for the size of the replies that aren't paged by the client. */
+    public enum TmaReplyByteBudget implements EnumPrefValue {
+        NONE("None", "none", 0),
+        SMALL("Small", "small", 64 * 1024),
+        MEDIUM("Medium", "medium", 256 * 1024),
+        LARGE("Large", "large", 512 * 1024);
+
+        private final PrefValueImpl mPrefValue;
+        /** Zero when unlimited. */
+        public final int mByteBudget;
+
+        TmaReplyByteBudget(String displayTitle, String id, int byteBudget) {
+            mPrefValue = new PrefValueImpl(displayTitle + "(" + byteBudget / 1024 + "KB)", id);
+            mByteBudget = byteBudget;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** Where the browse and search replies are computed. */
+    public enum TmaReplyThread implements EnumPrefValue {
+        MAIN("Main thread", "main"),
+        WORKERS("Worker threads", "workers");
+
+        private final PrefValueImpl mPrefValue;
+
+        TmaReplyThread(String displayTitle, String id) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /**
+     * How many browse requests can be in progress (waiting for their delayed or worker reply),
+     * for each client package and in total. Past the limits, the requests overflow according to
+     * {@link TmaOverflowPolicy}, up to a number of queued requests per client.
+     */
+    public enum TmaAdmissionLimit implements EnumPrefValue {
+        NONE("No limit", "none", 0, 0, 0),
+        STRICT("4 per client, 16 in total", "strict", 4, 16, 16),
+        RELAXED("16 per client, 64 in total", "relaxed", 16, 64, 64);
+
+        private final PrefValueImpl mPrefValue;
+        /** Zero when unlimited. */
+        public final int mMaxPerClient;
+        /** Zero when unlimited. */
+        public final int mMaxTotal;
+        public final int mMaxQueuedPerClient;
+
+        TmaAdmissionLimit(String displayTitle, String id, int maxPerClient, int maxTotal,
+                int maxQueuedPerClient) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+            mMaxPerClient = maxPerClient;
+            mMaxTotal = maxTotal;
+            mMaxQueuedPerClient = maxQueuedPerClient;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** What happens to the browse requests over the {@link TmaAdmissionLimit}. */
+    public enum TmaOverflowPolicy implements EnumPrefValue {
+        QUEUE("Queue", "queue"),
+        FAIL_FAST("Fail fast", "fail_fast");
+
+        private final PrefValueImpl mPrefValue;
+
+        TmaOverflowPolicy(String displayTitle, String id) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** Upper bound for the estimated size of the items cached by the library. */
+    public enum TmaCacheBudget implements EnumPrefValue {
+        NONE("Unlimited", "none", 0),
+        SMALL("1 MB", "small", 1024 * 1024),
+        MEDIUM("8 MB", "medium", 8 * 1024 * 1024),
+        LARGE("32 MB", "large", 32 * 1024 * 1024);
+
+        private final PrefValueImpl mPrefValue;
+        /** Zero when unlimited. */
+        public final long mByteBudget;
+
+        TmaCacheBudget(String displayTitle, String id, long byteBudget) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+            mByteBudget = byteBudget;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /**
+     * How many of the first browsable children of a reply are prepared in the background for
+     * the next browse, and how many bytes of their children's art can be read in advance.
+     */
+    public enum TmaPrefetchBudget implements EnumPrefValue {
+        NONE("Off", "none", 0, 0),
+        SMALL("2 nodes, 256 KB of art", "small", 2, 256 * 1024),
+        MEDIUM("4 nodes, 1 MB of art", "medium", 4, 1024 * 1024),
+        LARGE("8 nodes, 4 MB of art", "large", 8, 4 * 1024 * 1024);
+
+        private final PrefValueImpl mPrefValue;
+        public final int mNodeCount;
+        public final long mArtByteBudget;
+
+        TmaPrefetchBudget(String displayTitle, String id, int nodeCount, long artByteBudget) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+            mNodeCount = nodeCount;
+            mArtByteBudget = artByteBudget;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** How the items of the json files are held in memory once loaded. */
+    public enum TmaCatalogStore implements EnumPrefValue {
+        MAPPED("Memory mapped catalog files", "mapped"),
+        COMPACT("Compact in-heap arrays", "compact");
+
+        private final PrefValueImpl mPrefValue;
+
+        TmaCatalogStore(String displayTitle, String id) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** How many threads parse the json files that are read whole, and the included files. */
+    public enum TmaLoaderThreads implements EnumPrefValue {
+        SERIAL("Serial", "serial", 1),
+        TWO("2 threads", "two", 2),
+        FOUR("4 threads", "four", 4),
+        EIGHT("8 threads", "eight", 8);
+
+        private final PrefValueImpl mPrefValue;
+        public final int mThreadCount;
+
+        TmaLoaderThreads(String displayTitle, String id, int threadCount) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+            mThreadCount = threadCount;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** Seed of the generated catalog, each seed generates different items. */
+    public enum TmaGeneratorSeed implements EnumPrefValue {
+        ONE("1", "1", 1),
+        TWO("2", "2", 2),
+        THREE("3", "3", 3);
+
+        private final PrefValueImpl mPrefValue;
+        public final int mSeed;
+
+        TmaGeneratorSeed(String displayTitle, String id, int value) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+            mSeed = value;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** Number of levels below the root of the generated catalog. */
+    public enum TmaGeneratorDepth implements EnumPrefValue {
+        ONE("1", "1", 1),
+        TWO("2", "2", 2),
+        THREE("3", "3", 3),
+        FOUR("4", "4", 4),
+        FIVE("5", "5", 5),
+        SIX("6", "6", 6);
+
+        private final PrefValueImpl mPrefValue;
+        public final int mDepth;
+
+        TmaGeneratorDepth(String displayTitle, String id, int value) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+            mDepth = value;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** Number of children of each browsable node of the generated catalog. */
+    public enum TmaGeneratorFanOut implements EnumPrefValue {
+        TEN("10", "10", 10),
+        HUNDRED("100", "100", 100),
+        THOUSAND("1000", "1000", 1000);
+
+        private final PrefValueImpl mPrefValue;
+        public final int mFanOut;
+
+        TmaGeneratorFanOut(String displayTitle, String id, int value) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+            mFanOut = value;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** Percentage of playable children above the last level of the generated catalog. */
+    public enum TmaGeneratorPlayableRatio implements EnumPrefValue {
+        NONE("0%", "0", 0),
+        QUARTER("25%", "25", 25),
+        HALF("50%", "50", 50),
+        THREE_QUARTERS("75%", "75", 75),
+        ALL("100%", "100", 100);
+
+        private final PrefValueImpl mPrefValue;
+        public final int mPercent;
+
+        TmaGeneratorPlayableRatio(String displayTitle, String id, int value) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+            mPercent = value;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** Length of the titles of the generated catalog. */
+    public enum TmaGeneratorTitleLength implements EnumPrefValue {
+        SHORT("Short(8)", "short", 8),
+        MEDIUM("Medium(32)", "medium", 32),
+        LONG("Long(128)", "long", 128);
+
+        private final PrefValueImpl mPrefValue;
+        public final int mLength;
+
+        TmaGeneratorTitleLength(String displayTitle, String id, int value) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+            mLength = value;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
+    /** Percentage of the items of the generated catalog that have art. */
+    public enum TmaGeneratorArt implements EnumPrefValue {
+        NONE("None", "none", 0),
+        HALF("Half", "half", 50),
+        ALL("All", "all", 100);
+
+        private final PrefValueImpl mPrefValue;
+        public final int mPercent;
+
+        TmaGeneratorArt(String displayTitle, String id, int value) {
+            mPrefValue = new PrefValueImpl(displayTitle, id);
+            mPercent = value;
+        }
+
+        @Override
+        public String getTitle() {
+            return mPrefValue.getTitle();
+        }
+
+        @Override
+        public String getId() {
+            return mPrefValue.getId();
+        }
+    }
+
 
     public enum TmaBrowseNodeType implements EnumPrefValue {
         NULL("Null (error)", "null"),
         EMPTY("Empty", "empty"),
         NODE_CHILDREN("Only browse-able content", "nodes"),
         LEAF_CHILDREN("Only playable content (basic working and error cases)", "leaves"),
-        MIXED_CHILDREN("Mixed content (apps are not supposed to do that)", "mixed");
+        MIXED_CHILDREN("Mixed content (apps are not supposed to do that)", "mixed"),
+        GENERATED("Generated catalog (see generator prefs)", "generated");
 
         private final PrefValueImpl mPrefValue;
 
@@ -23,10 +23,26 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import androidx.preference.PreferenceManager;
 
 import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaAccountType;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaAdmissionLimit;
 import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaBrowseNodeType;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaCacheBudget;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaCatalogStore;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorArt;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorDepth;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorFanOut;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorPlayableRatio;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorSeed;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorTitleLength;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaLoaderThreads;
 import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaNodeReplyDelay;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaOverflowPolicy;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaPrefetchBudget;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaReplyByteBudget;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaReplyThread;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
@@ -42,6 +58,36 @@ public class TmaPrefs {
     /** Wait time before sending a node reply, unless overridden in json (when supported). */
     public final PrefEntry<TmaNodeReplyDelay> mRootReplyDelay;
 
+    /** Whether the replies are computed on the main thread or on a pool of worker threads. */
+    public final PrefEntry<TmaReplyThread> mReplyThread;
+
+    /** Replies that aren't paged by the client are truncated to stay under this size, if any. */
+    public final PrefEntry<TmaReplyByteBudget> mReplyByteBudget;
+
+    /** Limits the browse requests in progress, to protect from misbehaving clients. */
+    public final PrefEntry<TmaAdmissionLimit> mAdmissionLimit;
+    public final PrefEntry<TmaOverflowPolicy> mOverflowPolicy;
+
+    /** Files whose items aren't in use are evicted from the library above this budget. */
+    public final PrefEntry<TmaCacheBudget> mCacheBudget;
+
+    /** Prepares the nodes the user is likely to browse next. */
+    public final PrefEntry<TmaPrefetchBudget> mPrefetchBudget;
+
+    /** Applies to the json files loaded after it changes. */
+    public final PrefEntry<TmaCatalogStore> mCatalogStore;
+
+    /** Applies to the json files parsed after it changes. */
+    public final PrefEntry<TmaLoaderThreads> mLoaderThreads;
+
+    /** Configuration of the {@link TmaBrowseNodeType#GENERATED} catalog. */
+    public final PrefEntry<TmaGeneratorSeed> mGeneratorSeed;
+    public final PrefEntry<TmaGeneratorDepth> mGeneratorDepth;
+    public final PrefEntry<TmaGeneratorFanOut> mGeneratorFanOut;
+    public final PrefEntry<TmaGeneratorPlayableRatio> mGeneratorPlayableRatio;
+    public final PrefEntry<TmaGeneratorTitleLength> mGeneratorTitleLength;
+    public final PrefEntry<TmaGeneratorArt> mGeneratorArt;
+
 
     public synchronized static TmaPrefs getInstance(Context context) {
         if (sPrefs == null) {
@@ -50,6 +96,12 @@ public class TmaPrefs {
         return sPrefs;
     }
 
+    /** Returns the entries of the generated catalog's configuration. */
+    public List<PrefEntry<?>> getGeneratorPrefs() {
+        return Arrays.asList(mGeneratorSeed, mGeneratorDepth, mGeneratorFanOut,
+                mGeneratorPlayableRatio, mGeneratorTitleLength, mGeneratorArt);
+    }
+
     public interface PrefValueChangedListener<T> {
         void onValueChanged(T oldValue, T newValue);
     }
@@ -58,7 +110,21 @@ public class TmaPrefs {
     private enum TmaPrefKey {
         ACCOUNT_TYPE_KEY,
         ROOT_NODE_TYPE_KEY,
-        ROOT_REPLY_DELAY_KEY
+        ROOT_REPLY_DELAY_KEY,
+        REPLY_THREAD_KEY,
+        REPLY_BYTE_BUDGET_KEY,
+        ADMISSION_LIMIT_KEY,
+        OVERFLOW_POLICY_KEY,
+        CACHE_BUDGET_KEY,
+        PREFETCH_BUDGET_KEY,
+        CATALOG_STORE_KEY,
+        LOADER_THREADS_KEY,
+        GENERATOR_SEED_KEY,
+        GENERATOR_DEPTH_KEY,
+        GENERATOR_FAN_OUT_KEY,
+        GENERATOR_PLAYABLE_RATIO_KEY,
+        GENERATOR_TITLE_LENGTH_KEY,
+        GENERATOR_ART_KEY
     }
 
     /**
@@ -121,6 +187,48 @@ public class TmaPrefs {
 
         mRootReplyDelay = new EnumPrefEntry<>(TmaPrefKey.ROOT_REPLY_DELAY_KEY,
                 TmaNodeReplyDelay.values(), TmaNodeReplyDelay.NONE);
+
+        mReplyThread = new EnumPrefEntry<>(TmaPrefKey.REPLY_THREAD_KEY,
+                TmaReplyThread.values(), TmaReplyThread.MAIN);
+
+        mReplyByteBudget = new EnumPrefEntry<>(TmaPrefKey.REPLY_BYTE_BUDGET_KEY,
+                TmaReplyByteBudget.values(), TmaReplyByteBudget.NONE);
+
+        mAdmissionLimit = new EnumPrefEntry<>(TmaPrefKey.ADMISSION_LIMIT_KEY,
+                TmaAdmissionLimit.values(), TmaAdmissionLimit.RELAXED);
+
+        mOverflowPolicy = new EnumPrefEntry<>(TmaPrefKey.OVERFLOW_POLICY_KEY,
+                TmaOverflowPolicy.values(), TmaOverflowPolicy.QUEUE);
+
+        mCacheBudget = new EnumPrefEntry<>(TmaPrefKey.CACHE_BUDGET_KEY,
+                TmaCacheBudget.values(), TmaCacheBudget.LARGE);
+
+        mPrefetchBudget = new EnumPrefEntry<>(TmaPrefKey.PREFETCH_BUDGET_KEY,
+                TmaPrefetchBudget.values(), TmaPrefetchBudget.SMALL);
+
+        mCatalogStore = new EnumPrefEntry<>(TmaPrefKey.CATALOG_STORE_KEY,
+                TmaCatalogStore.values(), TmaCatalogStore.MAPPED);
+
+        mLoaderThreads = new EnumPrefEntry<>(TmaPrefKey.LOADER_THREADS_KEY,
+                TmaLoaderThreads.values(), TmaLoaderThreads.SERIAL);
+
+        mGeneratorSeed = new EnumPrefEntry<>(TmaPrefKey.GENERATOR_SEED_KEY,
+                TmaGeneratorSeed.values(), TmaGeneratorSeed.ONE);
+
+        mGeneratorDepth = new EnumPrefEntry<>(TmaPrefKey.GENERATOR_DEPTH_KEY,
+                TmaGeneratorDepth.values(), TmaGeneratorDepth.THREE);
+
+        mGeneratorFanOut = new EnumPrefEntry<>(TmaPrefKey.GENERATOR_FAN_OUT_KEY,
+                TmaGeneratorFanOut.values(), TmaGeneratorFanOut.HUNDRED);
+
+        mGeneratorPlayableRatio = new EnumPrefEntry<>(TmaPrefKey.GENERATOR_PLAYABLE_RATIO_KEY,
+                TmaGeneratorPlayableRatio.values(), TmaGeneratorPlayableRatio.HALF);
+
+        mGeneratorTitleLength = new EnumPrefEntry<>(TmaPrefKey.GENERATOR_TITLE_LENGTH_KEY,
+                TmaGeneratorTitleLength.values(), TmaGeneratorTitleLength.MEDIUM);
+
+        mGeneratorArt = new EnumPrefEntry<>(TmaPrefKey.GENERATOR_ART_KEY,
+                TmaGeneratorArt.values(), TmaGeneratorArt.HALF);
     }
 
 
@@ -25,8 +25,22 @@ import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.PreferenceScreen;
 
 import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaAccountType;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaAdmissionLimit;
 import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaBrowseNodeType;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaCacheBudget;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaCatalogStore;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorArt;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorDepth;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorFanOut;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorPlayableRatio;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorSeed;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaGeneratorTitleLength;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaLoaderThreads;
 import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaNodeReplyDelay;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaOverflowPolicy;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaPrefetchBudget;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaReplyByteBudget;
+import com.android.car.media.testmediaapp.prefs.TmaEnumPrefs.TmaReplyThread;
 import com.android.car.media.testmediaapp.prefs.TmaPrefs.PrefEntry;
 
 public class TmaPrefsFragment extends PreferenceFragmentCompat {
@@ -44,6 +58,34 @@ public class TmaPrefsFragment extends PreferenceFragmentCompat {
                 TmaBrowseNodeType.values()));
         screen.addPreference(createEnumPref(context, "Root reply delay", prefs.mRootReplyDelay,
                 TmaNodeReplyDelay.values()));
+        screen.addPreference(createEnumPref(context, "Reply thread", prefs.mReplyThread,
+                TmaReplyThread.values()));
+        screen.addPreference(createEnumPref(context, "Reply size budget", prefs.mReplyByteBudget,
+                TmaReplyByteBudget.values()));
+        screen.addPreference(createEnumPref(context, "Admission limit", prefs.mAdmissionLimit,
+                TmaAdmissionLimit.values()));
+        screen.addPreference(createEnumPref(context, "Overflow policy", prefs.mOverflowPolicy,
+                TmaOverflowPolicy.values()));
+        screen.addPreference(createEnumPref(context, "Cache budget", prefs.mCacheBudget,
+                TmaCacheBudget.values()));
+        screen.addPreference(createEnumPref(context, "Prefetch budget", prefs.mPrefetchBudget,
+                TmaPrefetchBudget.values()));
+        screen.addPreference(createEnumPref(context, "Catalog store", prefs.mCatalogStore,
+                TmaCatalogStore.values()));
+        screen.addPreference(createEnumPref(context, "Loader threads", prefs.mLoaderThreads,
+                TmaLoaderThreads.values()));
+        screen.addPreference(createEnumPref(context, "Generator seed", prefs.mGeneratorSeed,
+                TmaGeneratorSeed.values()));
+        screen.addPreference(createEnumPref(context, "Generator depth", prefs.mGeneratorDepth,
+                TmaGeneratorDepth.values()));
+        screen.addPreference(createEnumPref(context, "Generator fan-out", prefs.mGeneratorFanOut,
+                TmaGeneratorFanOut.values()));
+        screen.addPreference(createEnumPref(context, "Generator playable ratio",
+                prefs.mGeneratorPlayableRatio, TmaGeneratorPlayableRatio.values()));
+        screen.addPreference(createEnumPref(context, "Generator title length",
+                prefs.mGeneratorTitleLength, TmaGeneratorTitleLength.values()));
+        screen.addPreference(createEnumPref(context, "Generator art", prefs.mGeneratorArt,
+                TmaGeneratorArt.values()));
 
         setPreferenceScreen(screen);
     }